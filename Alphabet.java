@@ -0,0 +1,89 @@
+/*
+ * The set of symbols a key works over
+ *
+ * Each symbol gets a digit value from 1 to size() and all the arithmetic is done
+ * modulo size(), so LETTERS is the original A=1 ... Z=26 modulo 26 cipher and the
+ * bigger alphabets let messages keep their digits, punctuation or raw bytes
+ * instead of being filtered first. Classifying a character is one lookup in a 256
+ * entry table (0 for anything outside the alphabet), which checks and maps it in
+ * the same step. Going back the other way is a lookup in the symbol table.
+ *
+ * LETTERS and ALPHANUMERIC read lower case letters as their capitals, the other
+ * two keep every byte as it is
+ */
+public enum Alphabet {
+
+    // A-Z, the alphabet every key used before this existed
+    LETTERS(letters(), true),
+
+    // A-Z then 0-9
+    ALPHANUMERIC(letters() + "0123456789", true),
+
+    // Every printable ASCII character from space to ~
+    PRINTABLE_ASCII(range(0x20, 0x7E), false),
+
+    // Every byte value, 0x00 is digit value 1 and 0xFF is 256
+    BYTES(range(0x00, 0xFF), false);
+
+    private final int size;
+    private final int[] values = new int[256];
+    private final char[] symbols;
+
+    Alphabet(String symbolList, boolean foldCase) {
+        this.size = symbolList.length();
+        this.symbols = new char[size + 1];
+        for (int i = 0; i < size; i++) {
+            char symbol = symbolList.charAt(i);
+            symbols[i + 1] = symbol;
+            values[symbol] = i + 1;
+        }
+        if (foldCase) {
+            for (char c = 'a'; c <= 'z'; c++) {
+                values[c] = values[c - 'a' + 'A'];
+            }
+        }
+    }
+
+    private static String letters() {
+        return range('A', 'Z');
+    }
+
+    private static String range(int first, int last) {
+        StringBuilder builder = new StringBuilder();
+        for (int c = first; c <= last; c++) {
+            builder.append((char) c);
+        }
+        return builder.toString();
+    }
+
+    // Number of symbols, which is also the modulus the cipher works in
+    public int size() {
+        return size;
+    }
+
+    public boolean contains(int c) {
+        return (c & ~0xFF) == 0 && values[c] != 0;
+    }
+
+    /*
+     * The digit value of the character, or 0 when it isn't in the alphabet. The
+     * table lookup is all the validation there is
+     */
+    public int valueOf(int c) {
+        return (c & ~0xFF) == 0 ? values[c] : 0;
+    }
+
+    // The symbol for a digit value from 1 to size()
+    public char symbolOf(int value) {
+        return symbols[value];
+    }
+
+    // The lookup tables themselves for the kernels, never to be written to
+    int[] valueTable() {
+        return values;
+    }
+
+    char[] symbolTable() {
+        return symbols;
+    }
+}
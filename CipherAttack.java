@@ -0,0 +1,607 @@
+import java.util.Arrays;
+import java.util.SplittableRandom;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/*
+ * Known plaintext attack on the substitution and 2x2 matrix stages, doubling as a
+ * CPU scaling benchmark
+ *
+ *   java CipherAttack [alphabet] [known plaintext length] [mismatches] [threads]
+ *
+ * Given a plaintext, its cipher and the transposition key, every 2x2 matrix that
+ * is invertible modulo the alphabet size is tried as the inverse key matrix. The
+ * transposition is undone once up front: it is a permutation of the whole message,
+ * so searching it would be n! keys, not a benchmark. A trial multiplies each cipher
+ * pair by the candidate and counts votes for "plaintext letter p substitutes to s".
+ * Since the substitution has to be a permutation, every vote that disagrees with
+ * the busiest one in its row (or its column) costs at least one mismatched position
+ * whatever substitution is picked, so a trial stops as soon as either count goes
+ * over the allowed mismatches. A wrong matrix is usually out after a handful of
+ * pairs, and no trial allocates anything.
+ *
+ * Matrices that survive go to a hill climb over the substitution: start every
+ * letter on its most voted value, then keep moving a letter to another value
+ * (swapping with whoever holds it) while that matches more positions. With an
+ * exact crib the right matrix matches everything straight away; the climb is what
+ * sorts it out when some of the known plaintext is wrong.
+ *
+ * Multiplying the matrix by a unit u and the substitution by u^-1 gives the same
+ * cipher, so there are always phi(N) equally good keys (12 modulo 26). Any of them
+ * decodes the message, the result reports the first in matrix order and how many
+ * there were.
+ *
+ * The first rows of the candidates are split across a ForkJoinPool so idle workers
+ * steal what's left, and without arguments main times the search at 1, 2, 4 ...
+ * threads up to the core count and prints matrices and substitution moves per
+ * second for each
+ */
+public class CipherAttack {
+
+    private final ForkJoinPool pool;
+
+    public CipherAttack() {
+        this(ForkJoinPool.commonPool());
+    }
+
+    public CipherAttack(ForkJoinPool pool) {
+        this.pool = pool;
+    }
+
+    /*
+     * Searches for the substitution and matrix key of a cipher made with a 2x2 key,
+     * plaintext being a known prefix of the message (up to its full length) and
+     * mismatches how many of its letters are allowed to be wrong
+     */
+    public Result attack(byte[] plaintext, byte[] cipherText, int[] transpositionKey, Alphabet alphabet,
+            int mismatches) {
+        if (cipherText.length != transpositionKey.length || cipherText.length % 2 != 0) {
+            throw CipherMetrics.error(CipherMetrics.ErrorType.LENGTH_MISMATCH,
+                    "Error: Cipher must be an even length and match the transposition key");
+        }
+        if (plaintext.length > cipherText.length) {
+            throw CipherMetrics.error(CipherMetrics.ErrorType.LENGTH_MISMATCH,
+                    "Error: Known plaintext is longer than the cipher");
+        }
+        int[] valueTable = alphabet.valueTable();
+
+        // Undo the transposition once, the candidates only ever see product order
+        int[] productValues = new int[cipherText.length];
+        for (int i = 0; i < cipherText.length; i++) {
+            int position = transpositionKey[i];
+            if (position < 0 || position >= productValues.length) {
+                throw CipherMetrics.error(CipherMetrics.ErrorType.INVALID_KEY,
+                        "Error: Transposition key values must be between 0 and " + (productValues.length - 1));
+            }
+            productValues[position] = CustomCipher.toDigitValue(cipherText[i] & 0xFF, valueTable);
+        }
+
+        // A trailing odd letter shares its pair with padding, which isn't known
+        int[] plainValues = new int[plaintext.length & ~1];
+        for (int i = 0; i < plainValues.length; i++) {
+            plainValues[i] = CustomCipher.toDigitValue(plaintext[i] & 0xFF, valueTable);
+        }
+        return attack(plainValues, productValues, alphabet, mismatches);
+    }
+
+    /*
+     * Same search on digit values (1 to the alphabet size) with the transposition
+     * already undone, only the first plainValues.length product values are used
+     */
+    public Result attack(int[] plainValues, int[] productValues, Alphabet alphabet, int mismatches) {
+        if (plainValues.length % 2 != 0 || plainValues.length > productValues.length) {
+            throw CipherMetrics.error(CipherMetrics.ErrorType.LENGTH_MISMATCH,
+                    "Error: Known plaintext must cover whole pairs of the cipher");
+        }
+        if (mismatches < 0) {
+            throw new IllegalArgumentException("Error: Mismatches can't be negative");
+        }
+        long startTime = System.nanoTime();
+        Search search = new Search(plainValues, productValues, alphabet, mismatches);
+        int rows = search.modulus * search.modulus;
+        int grain = Math.max(1, rows / (pool.getParallelism() * 8));
+        pool.invoke(new SearchTask(search, 0, rows, grain));
+        return search.result(System.nanoTime() - startTime);
+    }
+
+    public static final class Result {
+        private final Alphabet alphabet;
+        private final int[] matrix;
+        private final int[] substitution;
+        private final int matchedPositions;
+        private final int knownPositions;
+        private final long candidateCount;
+        private final long matricesTested;
+        private final long substitutionsTried;
+        private final long elapsedNanos;
+
+        Result(Alphabet alphabet, int[] matrix, int[] substitution, int matchedPositions, int knownPositions,
+                long candidateCount, long matricesTested, long substitutionsTried, long elapsedNanos) {
+            this.alphabet = alphabet;
+            this.matrix = matrix;
+            this.substitution = substitution;
+            this.matchedPositions = matchedPositions;
+            this.knownPositions = knownPositions;
+            this.candidateCount = candidateCount;
+            this.matricesTested = matricesTested;
+            this.substitutionsTried = substitutionsTried;
+            this.elapsedNanos = elapsedNanos;
+        }
+
+        // False when no matrix came within the allowed mismatches
+        public boolean isFound() {
+            return matrix != null;
+        }
+
+        // Row major forward key matrix, values 1 to the alphabet size
+        public int[] getMatrix() {
+            return matrix == null ? null : matrix.clone();
+        }
+
+        // Same layout as the start of a master key, letters the known plaintext
+        // doesn't use get whatever values were left over
+        public int[] getSubstitution() {
+            return substitution == null ? null : substitution.clone();
+        }
+
+        public int getMatchedPositions() {
+            return matchedPositions;
+        }
+
+        public int getKnownPositions() {
+            return knownPositions;
+        }
+
+        // How many matrices matched as many positions as the one reported
+        public long getCandidateCount() {
+            return candidateCount;
+        }
+
+        public long getMatricesTested() {
+            return matricesTested;
+        }
+
+        public long getSubstitutionsTried() {
+            return substitutionsTried;
+        }
+
+        public long getElapsedNanos() {
+            return elapsedNanos;
+        }
+
+        public double getKeysPerSecond() {
+            return matricesTested / (elapsedNanos / 1e9);
+        }
+
+        // The recovered key put back together with the transposition key it was given
+        public CipherKey toKey(int[] transpositionKey) {
+            if (matrix == null) {
+                throw new IllegalStateException("Error: No key was found");
+            }
+            int[] masterKey = new int[substitution.length + matrix.length + transpositionKey.length];
+            System.arraycopy(substitution, 0, masterKey, 0, substitution.length);
+            System.arraycopy(matrix, 0, masterKey, substitution.length, matrix.length);
+            System.arraycopy(transpositionKey, 0, masterKey, substitution.length + matrix.length,
+                    transpositionKey.length);
+            return new CipherKey(masterKey, 2, alphabet);
+        }
+    }
+
+    // State shared by every task, the best key so far is merged in under the lock
+    // as each task finishes
+    private static final class Search {
+        final Alphabet alphabet;
+        final int modulus;
+        final long reciprocal;
+        final int[] plainValues;
+        final int[] productValues;
+        final int mismatches;
+        final boolean[] units;
+        final int[] letters;
+
+        private int bestScore = -1;
+        private long bestIndex;
+        private long bestCount;
+        private int[] bestInverse;
+        private int[] bestAssignment;
+        private long matricesTested;
+        private long substitutionsTried;
+
+        Search(int[] plainValues, int[] productValues, Alphabet alphabet, int mismatches) {
+            this.alphabet = alphabet;
+            this.modulus = alphabet.size();
+            this.reciprocal = (1L << 40) / modulus + 1;
+            this.plainValues = plainValues;
+            this.productValues = productValues;
+            this.mismatches = mismatches;
+
+            units = new boolean[modulus];
+            for (int i = 1; i < modulus; i++) {
+                units[i] = gcd(i, modulus) == 1;
+            }
+
+            boolean[] seen = new boolean[modulus + 1];
+            int count = 0;
+            for (int value : plainValues) {
+                if (!seen[value]) {
+                    seen[value] = true;
+                    count++;
+                }
+            }
+            letters = new int[count];
+            count = 0;
+            for (int value = 1; value <= modulus; value++) {
+                if (seen[value]) {
+                    letters[count++] = value;
+                }
+            }
+        }
+
+        synchronized void merge(Worker worker) {
+            matricesTested += worker.matricesTested;
+            substitutionsTried += worker.substitutionsTried;
+            if (worker.bestScore < 0) {
+                return;
+            }
+            if (worker.bestScore > bestScore) {
+                bestScore = worker.bestScore;
+                bestCount = 0;
+                bestIndex = Long.MAX_VALUE;
+            } else if (worker.bestScore < bestScore) {
+                return;
+            }
+            bestCount += worker.bestCount;
+            if (worker.bestIndex < bestIndex) {
+                bestIndex = worker.bestIndex;
+                bestInverse = worker.bestInverse;
+                bestAssignment = worker.bestAssignment;
+            }
+        }
+
+        synchronized Result result(long elapsedNanos) {
+            if (bestScore < 0) {
+                return new Result(alphabet, null, null, 0, plainValues.length, 0, matricesTested,
+                        substitutionsTried, elapsedNanos);
+            }
+            int[] matrix = ModularMatrix.invert(bestInverse, 2, modulus);
+
+            // Fill in the letters the crib never used with the values nobody took
+            int[] substitution = new int[modulus];
+            boolean[] taken = new boolean[modulus + 1];
+            for (int letter : letters) {
+                substitution[letter - 1] = bestAssignment[letter];
+                taken[bestAssignment[letter]] = true;
+            }
+            int next = 1;
+            for (int i = 0; i < modulus; i++) {
+                if (substitution[i] == 0) {
+                    while (taken[next]) {
+                        next++;
+                    }
+                    substitution[i] = next++;
+                }
+            }
+            return new Result(alphabet, matrix, substitution, bestScore, plainValues.length, bestCount,
+                    matricesTested, substitutionsTried, elapsedNanos);
+        }
+    }
+
+    private static int gcd(int a, int b) {
+        while (b != 0) {
+            int t = a % b;
+            a = b;
+            b = t;
+        }
+        return a;
+    }
+
+    /*
+     * One task's scratch space, allocated once per task and reused for every trial.
+     * The vote tables are reset lazily: an entry only counts when its stamp holds
+     * the current trial's generation, so a trial that stops after three pairs only
+     * ever touches a handful of entries
+     */
+    private static final class Worker {
+        private final Search search;
+        private final int modulus;
+        private final long reciprocal;
+        private final int[] plain;
+        private final int[] product;
+        private final int pairs;
+        private final int stride;
+
+        private final int[] votes;
+        private final int[] voteStamps;
+        private final int[] rowMax;
+        private final int[] rowStamps;
+        private final int[] columnMax;
+        private final int[] columnStamps;
+        private int generation;
+        private int rowLost;
+        private int columnLost;
+
+        // First row of the current candidates applied to each pair, shared by all
+        // N^2 second rows and only worked out as far as some trial has got
+        private final int[] firstRow;
+        private int computed;
+
+        // Substitution being climbed (indexed by letter) and which letter holds each
+        // value (0 for none)
+        private final int[] assignment;
+        private final int[] owner;
+
+        int bestScore = -1;
+        long bestIndex;
+        long bestCount;
+        int[] bestInverse;
+        int[] bestAssignment;
+        long matricesTested;
+        long substitutionsTried;
+
+        Worker(Search search) {
+            this.search = search;
+            this.modulus = search.modulus;
+            this.reciprocal = search.reciprocal;
+            this.plain = search.plainValues;
+            this.product = search.productValues;
+            this.pairs = plain.length / 2;
+            this.stride = modulus + 1;
+            votes = new int[stride * stride];
+            voteStamps = new int[stride * stride];
+            rowMax = new int[stride];
+            rowStamps = new int[stride];
+            columnMax = new int[stride];
+            columnStamps = new int[stride];
+            firstRow = new int[pairs];
+            assignment = new int[stride];
+            owner = new int[stride];
+        }
+
+        // Tries every invertible matrix whose first row is (a, b) for row = (a - 1) * N + (b - 1)
+        void searchRow(int row) {
+            int a = row / modulus + 1;
+            int b = row % modulus + 1;
+            computed = 0;
+            boolean[] units = search.units;
+            for (int c = 1; c <= modulus; c++) {
+                for (int d = 1; d <= modulus; d++) {
+                    if (!units[Math.floorMod(a * d - b * c, modulus)]) {
+                        continue;
+                    }
+                    matricesTested++;
+                    if (trial(a, b, c, d)) {
+                        climb(a, b, c, d, (long) row * modulus * modulus + (c - 1) * modulus + (d - 1));
+                    }
+                }
+            }
+        }
+
+        // Returns whether the candidate inverse matrix stays within the allowed
+        // mismatches over the whole crib, leaving its votes in the tables
+        private boolean trial(int a, int b, int c, int d) {
+            if (++generation == 0) {
+                Arrays.fill(voteStamps, 0);
+                Arrays.fill(rowStamps, 0);
+                Arrays.fill(columnStamps, 0);
+                generation = 1;
+            }
+            rowLost = 0;
+            columnLost = 0;
+            int mismatches = search.mismatches;
+            for (int j = 0, i = 0; j < pairs; j++, i += 2) {
+                int x = product[i];
+                int y = product[i + 1];
+                if (j == computed) {
+                    firstRow[j] = CustomCipher.reduce(a * x + b * y, modulus, reciprocal);
+                    computed++;
+                }
+                vote(plain[i], firstRow[j]);
+                vote(plain[i + 1], CustomCipher.reduce(c * x + d * y, modulus, reciprocal));
+                if (rowLost > mismatches || columnLost > mismatches) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private void vote(int letter, int value) {
+            int cell = letter * stride + value;
+            int count = voteStamps[cell] == generation ? votes[cell] + 1 : 1;
+            votes[cell] = count;
+            voteStamps[cell] = generation;
+
+            int max = rowStamps[letter] == generation ? rowMax[letter] : 0;
+            if (count > max) {
+                rowMax[letter] = count;
+                rowStamps[letter] = generation;
+            } else {
+                rowLost++;
+            }
+            max = columnStamps[value] == generation ? columnMax[value] : 0;
+            if (count > max) {
+                columnMax[value] = count;
+                columnStamps[value] = generation;
+            } else {
+                columnLost++;
+            }
+        }
+
+        private int votesFor(int letter, int value) {
+            int cell = letter * stride + value;
+            return voteStamps[cell] == generation ? votes[cell] : 0;
+        }
+
+        // Hill climbs the substitution for a candidate that passed its trial and
+        // keeps it if it's at least as good as the best so far
+        private void climb(int a, int b, int c, int d, long index) {
+            int[] letters = search.letters;
+            Arrays.fill(owner, 0);
+
+            // Every letter starts on its most voted value that's still free
+            for (int letter : letters) {
+                int best = 0;
+                int bestVotes = -1;
+                for (int value = 1; value <= modulus; value++) {
+                    int count = votesFor(letter, value);
+                    if (owner[value] == 0 && count > bestVotes) {
+                        best = value;
+                        bestVotes = count;
+                    }
+                }
+                assignment[letter] = best;
+                owner[best] = letter;
+            }
+
+            // Then move letters (swapping with whoever holds the value) for as long
+            // as that matches more positions
+            boolean improved = true;
+            while (improved) {
+                improved = false;
+                for (int letter : letters) {
+                    int current = assignment[letter];
+                    for (int value = 1; value <= modulus; value++) {
+                        if (value == current) {
+                            continue;
+                        }
+                        substitutionsTried++;
+                        int other = owner[value];
+                        int gain = votesFor(letter, value) - votesFor(letter, current);
+                        if (other != 0) {
+                            gain += votesFor(other, current) - votesFor(other, value);
+                        }
+                        if (gain > 0) {
+                            assignment[letter] = value;
+                            owner[value] = letter;
+                            owner[current] = other;
+                            if (other != 0) {
+                                assignment[other] = current;
+                            }
+                            current = value;
+                            improved = true;
+                        }
+                    }
+                }
+            }
+
+            int score = 0;
+            for (int letter : letters) {
+                score += votesFor(letter, assignment[letter]);
+            }
+            if (score < plain.length - search.mismatches || score < bestScore) {
+                return;
+            }
+            if (score > bestScore) {
+                bestScore = score;
+                bestCount = 0;
+            }
+            bestCount++;
+            // Rows are searched in order, so the first one found is the lowest index
+            if (bestCount == 1) {
+                bestIndex = index;
+                bestInverse = new int[] {a, b, c, d};
+                bestAssignment = assignment.clone();
+            }
+        }
+    }
+
+    private static final class SearchTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final transient Search search;
+        private final int from;
+        private final int to;
+        private final int grain;
+
+        SearchTask(Search search, int from, int to, int grain) {
+            this.search = search;
+            this.from = from;
+            this.to = to;
+            this.grain = grain;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= grain) {
+                Worker worker = new Worker(search);
+                for (int row = from; row < to; row++) {
+                    worker.searchRow(row);
+                }
+                search.merge(worker);
+                return;
+            }
+            int middle = (from + to) >>> 1;
+            invokeAll(new SearchTask(search, from, middle, grain), new SearchTask(search, middle, to, grain));
+        }
+    }
+
+    public static void main(String[] args) {
+        Alphabet alphabet = args.length > 0 ? Alphabet.valueOf(args[0].toUpperCase()) : Alphabet.LETTERS;
+        int length = args.length > 1 ? Integer.parseInt(args[1]) : 64;
+        int mismatches = args.length > 2 ? Integer.parseInt(args[2]) : 0;
+        int cores = Runtime.getRuntime().availableProcessors();
+        int maxThreads = args.length > 3 ? Integer.parseInt(args[3]) : cores;
+        length += length % 2;
+
+        // A random message under a random key, the attack gets all of the cipher and
+        // transposition key and a crib with mismatches letters changed
+        SplittableRandom random = new SplittableRandom(42);
+        CipherKey key = new CipherKey(length, 2, alphabet, random);
+        byte[] plaintext = new byte[length];
+        for (int i = 0; i < length; i++) {
+            plaintext[i] = (byte) alphabet.symbolOf(random.nextInt(alphabet.size()) + 1);
+        }
+        byte[] cipherText = new byte[length];
+        new CustomCipher().encode(plaintext, 0, length, key, cipherText, 0);
+        byte[] crib = plaintext.clone();
+        for (int i = 0; i < mismatches; i++) {
+            int position = random.nextInt(length);
+            crib[position] = (byte) alphabet.symbolOf(alphabet.valueOf(crib[position] & 0xFF) % alphabet.size() + 1);
+        }
+        int[] transpositionKey = key.getTranspositionKey();
+
+        System.out.printf("%s, %d letter crib, %d wrong, %d cores%n", alphabet, length, mismatches, cores);
+        System.out.println("Threads   Seconds    Matrices/s   Substitutions/s   Speedup");
+        double baseline = 0;
+        Result result = null;
+        for (int threads = 1; threads <= maxThreads; threads = threads == maxThreads ? threads + 1
+                : Math.min(threads * 2, maxThreads)) {
+            ForkJoinPool pool = new ForkJoinPool(threads);
+            try {
+                CipherAttack attack = new CipherAttack(pool);
+                result = attack.attack(crib, cipherText, transpositionKey, alphabet, mismatches);
+
+                // Keep searching until a second has gone by so the small alphabets
+                // give a steady number too
+                long matrices = 0;
+                long substitutions = 0;
+                long elapsed = 0;
+                while (elapsed < 1_000_000_000L) {
+                    result = attack.attack(crib, cipherText, transpositionKey, alphabet, mismatches);
+                    matrices += result.getMatricesTested();
+                    substitutions += result.getSubstitutionsTried();
+                    elapsed += result.getElapsedNanos();
+                }
+                double seconds = elapsed / 1e9;
+                double rate = matrices / seconds;
+                if (threads == 1) {
+                    baseline = rate;
+                }
+                System.out.printf("%7d %9.3f %13.0f %17.0f %9.2f%n", threads, seconds, rate, substitutions / seconds,
+                        rate / baseline);
+            } finally {
+                pool.shutdown();
+            }
+        }
+
+        if (result == null || !result.isFound()) {
+            System.out.println("No key matched the crib");
+            return;
+        }
+        byte[] decoded = new byte[length];
+        new CustomCipher().decode(cipherText, 0, length, result.toKey(transpositionKey), decoded, 0);
+        System.out.printf("Recovered matrix %s (%d equally good keys), %d of %d positions matched, %s%n",
+                Arrays.toString(result.getMatrix()), result.getCandidateCount(), result.getMatchedPositions(),
+                result.getKnownPositions(), Arrays.equals(decoded, plaintext) ? "decodes the message"
+                        : "doesn't decode the message");
+    }
+}
@@ -0,0 +1,356 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/*
+ * Seekable cipher file, for serving byte ranges out of big encrypted archives
+ *
+ * Everything is encoded in blocks under a block key, the same as the streams and
+ * FileCipher, but the block layout goes up front instead of in a trailer:
+ *
+ *   header   'C' 'A', version, matrix size, block size (4 bytes), plaintext
+ *            length (8 bytes), block count (4 bytes), key check (8 bytes)
+ *   index    where each block's cipher starts in the file (8 bytes each)
+ *   blocks   the cipher, the last block padded with 'X' up to the block size
+ *
+ * Since every block is decoded on its own, read(position, ...) only reads the
+ * blocks the range falls in and only decodes the matrix blocks it covers, so
+ * fetching a few bytes costs one block whatever the size of the file. decode
+ * writes out the whole plaintext with the blocks split across a ForkJoinPool,
+ * each task reading, decoding and writing its own run of blocks.
+ *
+ * The key check is the start of a SHA-256 of the block key, enough for open to
+ * turn away the wrong key without the header giving anything about the key away.
+ *
+ * Like the rest of the block modes the plaintext has to hold nothing but symbols
+ * of the key's alphabet
+ */
+public class CipherContainer implements Closeable {
+
+    private static final byte MAGIC_0 = 'C';
+    private static final byte MAGIC_1 = 'A';
+    private static final int VERSION = 2;
+    private static final int HEADER_LENGTH = 28;
+
+    // Roughly how much each task (or each step of create) reads at once
+    private static final int CHUNK_SIZE = 1 << 20;
+
+    private final CustomCipher cipher = new CustomCipher();
+    private final CipherKey blockKey;
+    private final CompiledKey compiledKey;
+    private final int blockSize;
+    private final FileChannel channel;
+    private long size;
+    private long[] offsets;
+
+    private CipherContainer(FileChannel channel, CipherKey blockKey) {
+        this.channel = channel;
+        this.blockKey = blockKey;
+        this.compiledKey = blockKey.getCompiledKey();
+        this.blockSize = CustomCipher.checkBlockKey(compiledKey);
+    }
+
+    // Encodes the input file into a container at output under the block key
+    public static void create(Path input, Path output, CipherKey blockKey) throws IOException {
+        long startTime = CipherMetrics.start();
+        CustomCipher cipher = new CustomCipher();
+        int blockSize = CustomCipher.checkBlockKey(blockKey.getCompiledKey());
+        int chunk = Math.max(1, CHUNK_SIZE / blockSize) * blockSize;
+
+        try (FileChannel in = FileChannel.open(input, StandardOpenOption.READ);
+                FileChannel out = FileChannel.open(output, StandardOpenOption.WRITE, StandardOpenOption.CREATE,
+                        StandardOpenOption.TRUNCATE_EXISTING)) {
+            long size = in.size();
+            long blocks = (size + blockSize - 1) / blockSize;
+            if (blocks > Integer.MAX_VALUE) {
+                throw new IOException("Error: Too many blocks for a container, use a bigger block key");
+            }
+            long dataStart = HEADER_LENGTH + blocks * 8;
+
+            ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH);
+            header.put(MAGIC_0).put(MAGIC_1).put((byte) VERSION).put((byte) blockKey.getMatrixSize())
+                    .putInt(blockSize).putLong(size).putInt((int) blocks).putLong(keyCheck(blockKey)).flip();
+            writeFully(out, header, 0);
+
+            ByteBuffer index = ByteBuffer.allocate((int) Math.min(blocks, CHUNK_SIZE / 8) * 8);
+            for (long block = 0; block < blocks; block++) {
+                if (!index.hasRemaining()) {
+                    writeIndex(out, index, block);
+                }
+                index.putLong(dataStart + block * blockSize);
+            }
+            writeIndex(out, index, blocks);
+
+            byte[] plaintext = new byte[chunk];
+            byte[] cipherText = new byte[chunk];
+            for (long position = 0; position < size; position += chunk) {
+                int length = (int) Math.min(chunk, size - position);
+                ByteBuffer buffer = ByteBuffer.wrap(plaintext, 0, length);
+                while (buffer.hasRemaining()) {
+                    if (in.read(buffer, position + buffer.position()) < 0) {
+                        throw new IOException("Error: Input changed size while it was being encoded");
+                    }
+                }
+                // A short last block gets padded just like the streams do it
+                int cipherLength = (length + blockSize - 1) / blockSize * blockSize;
+                for (int i = length; i < cipherLength; i++) {
+                    plaintext[i] = CustomCipher.PADDING_LETTER;
+                }
+                for (int offset = 0; offset < cipherLength; offset += blockSize) {
+                    cipher.encode(plaintext, offset, blockSize, blockKey, cipherText, offset);
+                }
+                writeFully(out, ByteBuffer.wrap(cipherText, 0, cipherLength), dataStart + position);
+            }
+            CipherMetrics.record(CipherMetrics.Operation.FILE_ENCODE, blocks * blockSize, startTime);
+        }
+    }
+
+    // Opens a container for reading, the block key has to be the one it was made
+    // with (checked against the header, a different one is an IllegalArgumentException)
+    public static CipherContainer open(Path file, CipherKey blockKey) throws IOException {
+        CustomCipher.checkInvertible(blockKey.getCompiledKey());
+        CipherContainer container = new CipherContainer(FileChannel.open(file, StandardOpenOption.READ), blockKey);
+        try {
+            container.load();
+        } catch (IOException | RuntimeException e) {
+            container.close();
+            throw e;
+        }
+        return container;
+    }
+
+    // Plaintext length
+    public long size() {
+        return size;
+    }
+
+    public int getBlockSize() {
+        return blockSize;
+    }
+
+    public int getBlockCount() {
+        return offsets.length;
+    }
+
+    /*
+     * Decodes up to length bytes of plaintext starting at position into out and
+     * returns how many there were (less than length at the end of the plaintext,
+     * -1 when position is at or past it). Safe to call from any number of threads
+     */
+    public int read(long position, byte[] out, int outOffset, int length) throws IOException {
+        if (position < 0 || length < 0 || outOffset < 0 || length > out.length - outOffset) {
+            throw new IndexOutOfBoundsException("Error: Range is outside the buffer or the container");
+        }
+        if (position >= size) {
+            return length == 0 ? 0 : -1;
+        }
+        long startTime = CipherMetrics.start();
+        int n = (int) Math.min(length, size - position);
+        int matrixSize = compiledKey.matrixSize;
+        byte[] cipherBlock = new byte[blockSize];
+        byte[] plainBlock = new byte[blockSize];
+        int[] work = new int[blockSize];
+
+        int done = 0;
+        while (done < n) {
+            long at = position + done;
+            int block = (int) (at / blockSize);
+            int from = (int) (at - (long) block * blockSize);
+            int to = (int) Math.min(blockSize, from + (long) (n - done));
+            readBlock(block, cipherBlock);
+
+            // Only the matrix blocks overlapping [from, to) need decoding
+            if (compiledKey.inverseTransposition != null) {
+                int start = from / matrixSize * matrixSize;
+                int end = (to + matrixSize - 1) / matrixSize * matrixSize;
+                CustomCipher.decodeBlocks(cipherBlock, 0, compiledKey, start, end, plainBlock, 0, to, work);
+            } else {
+                cipher.decode(cipherBlock, 0, blockSize, blockKey, plainBlock, 0, work);
+            }
+            System.arraycopy(plainBlock, from, out, outOffset + done, to - from);
+            done += to - from;
+        }
+        CipherMetrics.record(CipherMetrics.Operation.DECODE, n, startTime);
+        return n;
+    }
+
+    public byte[] read(long position, int length) throws IOException {
+        int n = (int) Math.max(0, Math.min(length, size - position));
+        byte[] out = new byte[n];
+        if (n > 0) {
+            read(position, out, 0, n);
+        }
+        return out;
+    }
+
+    // Decodes the whole container into output on the common pool
+    public void decode(Path output) throws IOException {
+        decode(output, ForkJoinPool.commonPool());
+    }
+
+    public void decode(Path output, ForkJoinPool pool) throws IOException {
+        long startTime = CipherMetrics.start();
+        try (FileChannel out = FileChannel.open(output, StandardOpenOption.WRITE, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            int blocks = offsets.length;
+            int grain = Math.max(1, Math.min(blocks / (pool.getParallelism() * 4), CHUNK_SIZE / blockSize));
+            try {
+                pool.invoke(new DecodeTask(this, out, 0, blocks, grain));
+            } catch (UncheckedIOException e) {
+                throw e.getCause();
+            }
+        }
+        CipherMetrics.record(CipherMetrics.Operation.FILE_DECODE, size, startTime);
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    // Decodes the blocks in [from, to) and writes their plaintext where it belongs
+    private void decodeRun(FileChannel out, int from, int to) throws IOException {
+        int count = to - from;
+        byte[] cipherText = new byte[count * blockSize];
+        byte[] plaintext = new byte[count * blockSize];
+        int[] work = new int[blockSize];
+
+        // Blocks laid out back to back (every container create writes) come in one read
+        if (offsets[to - 1] - offsets[from] == (long) (count - 1) * blockSize) {
+            readFully(channel, ByteBuffer.wrap(cipherText), offsets[from]);
+        } else {
+            for (int block = from; block < to; block++) {
+                readFully(channel, ByteBuffer.wrap(cipherText, (block - from) * blockSize, blockSize),
+                        offsets[block]);
+            }
+        }
+
+        long plainStart = (long) from * blockSize;
+        int length = (int) Math.min(plaintext.length, size - plainStart);
+        if (compiledKey.inverseTransposition != null) {
+            for (int offset = 0; offset < plaintext.length; offset += blockSize) {
+                CustomCipher.decodeBlocks(cipherText, offset, compiledKey, 0, blockSize, plaintext, offset,
+                        Math.min(blockSize, length - offset), work);
+            }
+        } else {
+            for (int offset = 0; offset < plaintext.length; offset += blockSize) {
+                cipher.decode(cipherText, offset, blockSize, blockKey, plaintext, offset, work);
+            }
+        }
+        writeFully(out, ByteBuffer.wrap(plaintext, 0, length), plainStart);
+    }
+
+    private void readBlock(int block, byte[] cipherBlock) throws IOException {
+        readFully(channel, ByteBuffer.wrap(cipherBlock), offsets[block]);
+    }
+
+    private void load() throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH);
+        readFully(channel, header, 0);
+        header.flip();
+        if (header.get() != MAGIC_0 || header.get() != MAGIC_1) {
+            throw new IOException("Error: Not a cipher container");
+        }
+        int version = header.get();
+        if (version != VERSION) {
+            throw new IOException("Error: Unsupported cipher container version " + version);
+        }
+        int matrixSize = header.get() & 0xFF;
+        int containerBlockSize = header.getInt();
+        size = header.getLong();
+        int blocks = header.getInt();
+        if (matrixSize != compiledKey.matrixSize || containerBlockSize != blockSize
+                || header.getLong() != keyCheck(blockKey)) {
+            throw CipherMetrics.error(CipherMetrics.ErrorType.INVALID_KEY,
+                    "Error: Cipher container was written with a different block key");
+        }
+        if (size < 0 || blocks < 0 || (size + blockSize - 1) / blockSize != blocks) {
+            throw new IOException("Error: Corrupt cipher container header");
+        }
+
+        offsets = new long[blocks];
+        long fileSize = channel.size();
+        long dataStart = HEADER_LENGTH + (long) blocks * 8;
+        for (int block = 0; block < blocks;) {
+            int count = Math.min(CHUNK_SIZE / 8, blocks - block);
+            ByteBuffer index = ByteBuffer.allocate(count * 8);
+            readFully(channel, index, HEADER_LENGTH + (long) block * 8);
+            index.flip();
+            for (int end = block + count; block < end; block++) {
+                long offset = index.getLong();
+                if (offset < dataStart || offset > fileSize - blockSize) {
+                    throw new IOException("Error: Corrupt cipher container index");
+                }
+                offsets[block] = offset;
+            }
+        }
+    }
+
+    private static long keyCheck(CipherKey blockKey) {
+        return ByteBuffer.wrap(blockKey.digest("CipherContainer key check")).getLong();
+    }
+
+    private static void writeIndex(FileChannel out, ByteBuffer index, long block) throws IOException {
+        int entries = index.position() / 8;
+        index.flip();
+        writeFully(out, index, HEADER_LENGTH + (block - entries) * 8);
+        index.clear();
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+    }
+
+    // Fills the buffer from its position on with the file's bytes from position on
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        long start = position - buffer.position();
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, start + buffer.position()) < 0) {
+                throw new IOException("Error: Cipher container is truncated");
+            }
+        }
+    }
+
+    private static final class DecodeTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final transient CipherContainer container;
+        private final transient FileChannel out;
+        private final int from;
+        private final int to;
+        private final int grain;
+
+        DecodeTask(CipherContainer container, FileChannel out, int from, int to, int grain) {
+            this.container = container;
+            this.out = out;
+            this.from = from;
+            this.to = to;
+            this.grain = grain;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= grain) {
+                if (from < to) {
+                    try {
+                        container.decodeRun(out, from, to);
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                }
+                return;
+            }
+            int middle = (from + to) >>> 1;
+            invokeAll(new DecodeTask(container, out, from, middle, grain),
+                    new DecodeTask(container, out, middle, to, grain));
+        }
+    }
+}
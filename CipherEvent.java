@@ -0,0 +1,32 @@
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+/*
+ * JFR event for a cipher operation, committed by CipherMetrics while metrics are
+ * enabled. It's off unless a recording turns it on, e.g.
+ *   java -XX:StartFlightRecording:settings=profile,+cipher.Operation#enabled=true
+ * or from JDK Mission Control
+ */
+@Name("cipher.Operation")
+@Label("Cipher Operation")
+@Category("Cipher")
+@Description("An encode, decode or key build")
+@StackTrace(false)
+final class CipherEvent extends jdk.jfr.Event {
+
+    @Label("Operation")
+    String operation;
+
+    @Label("Bytes")
+    @DataAmount
+    long bytes;
+
+    @Label("Latency")
+    @Timespan(Timespan.NANOSECONDS)
+    long latency;
+}
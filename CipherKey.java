@@ -1,94 +1,280 @@
-import java.util.ArrayList;
-import java.util.Collections;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
 import java.util.HashMap;
-import java.util.List;
 import java.util.Map;
-import java.util.Random;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.random.RandomGenerator;
 
 public class CipherKey {
 
-    private int[] masterKey;
+    // Biggest n x n matrix a key can use
+    public static final int MAX_MATRIX_SIZE = 16;
+
+    // Everything is final and only ever handed out as copies so a key can be
+    // shared between threads once it is built
+    private final int[] masterKey;
+    private final Alphabet alphabet;
     private final Map<Integer, Integer> substitutionKey = new HashMap<>();
-    private int[] matrixKey;
-    private int[] transpositionKey;
+    private final int matrixSize;
+    private final int[] matrixKey;
+    private final int[] transpositionKey;
+    private final CompiledKey compiledKey;
 
     // Constructor for when a key is provided/predefined
     public CipherKey(int[] predefinedKey) {
-        if (predefinedKey.length < 30) {
-            throw new IllegalArgumentException("Error: Master key must be at least 30 integers long");
+        this(predefinedKey, 2);
+    }
+
+    // Same as above for a key built around an n x n matrix, the matrix takes up the
+    // n * n values right after the substitution key
+    public CipherKey(int[] predefinedKey, int matrixSize) {
+        this(predefinedKey, matrixSize, Alphabet.LETTERS);
+    }
+
+    // Same again over another alphabet, the substitution key then takes up the first
+    // alphabet.size() values instead of 26
+    public CipherKey(int[] predefinedKey, int matrixSize, Alphabet alphabet) {
+        long startTime = CipherMetrics.start();
+        checkMatrixSize(matrixSize);
+        int minimumLength = alphabet.size() + matrixSize * matrixSize;
+        if (predefinedKey.length < minimumLength) {
+            throw CipherMetrics.error(CipherMetrics.ErrorType.INVALID_KEY,
+                    "Error: Master key must be at least " + minimumLength + " integers long");
         }
         this.masterKey = predefinedKey.clone();
+        this.alphabet = alphabet;
+        this.matrixSize = matrixSize;
+        this.matrixKey = new int[matrixSize * matrixSize];
+        this.transpositionKey = new int[masterKey.length - minimumLength];
         parseKeys();
+        this.compiledKey = new CompiledKey(masterKey, matrixSize, alphabet);
+        CipherMetrics.record(CipherMetrics.Operation.KEY_BUILD, masterKey.length, startTime);
     }
 
     // Constructor for when a key is needed to be generated
     // We need the size of message to generate the transposition key size
     public CipherKey(int sizeOfMessage) {
-        // Ensure sizeOfMessage accounts for 2x2 matrix padding for when the string falls short of %2
-        int paddedSize = (sizeOfMessage % 2 == 0) ? sizeOfMessage : sizeOfMessage + (2 - (sizeOfMessage % 2));
-        this.masterKey = generateRandomKey(paddedSize);
+        this(sizeOfMessage, 2, ThreadLocalRandom.current());
+    }
+
+    // Same as above but draws from the given generator, pass a SecureRandom for
+    // keys that matter or a seeded generator for keys that need to be reproducible
+    public CipherKey(int sizeOfMessage, RandomGenerator randomGenerator) {
+        this(sizeOfMessage, 2, randomGenerator);
+    }
+
+    // Generates a key with an n x n matrix, bigger matrices mix more characters
+    // together per block
+    public CipherKey(int sizeOfMessage, int matrixSize, RandomGenerator randomGenerator) {
+        this(sizeOfMessage, matrixSize, Alphabet.LETTERS, randomGenerator);
+    }
+
+    // Generates a key over another alphabet, the cipher then accepts (and produces)
+    // any of its symbols and works modulo its size
+    public CipherKey(int sizeOfMessage, int matrixSize, Alphabet alphabet, RandomGenerator randomGenerator) {
+        long startTime = CipherMetrics.start();
+        checkMatrixSize(matrixSize);
+        // Ensure sizeOfMessage accounts for matrix padding for when the string falls short of a full block
+        int paddedSize = (sizeOfMessage % matrixSize == 0) ? sizeOfMessage
+                : sizeOfMessage + (matrixSize - (sizeOfMessage % matrixSize));
+        this.masterKey = generateRandomKey(paddedSize, matrixSize, alphabet, randomGenerator);
+        this.alphabet = alphabet;
+        this.matrixSize = matrixSize;
+        this.matrixKey = new int[matrixSize * matrixSize];
+        this.transpositionKey = new int[masterKey.length - alphabet.size() - matrixKey.length];
         parseKeys();
+        this.compiledKey = new CompiledKey(masterKey, matrixSize, alphabet);
+        CipherMetrics.record(CipherMetrics.Operation.KEY_BUILD, masterKey.length, startTime);
     }
 
-    private int[] generateRandomKey(int sizeOfMessage) {
-        Random randomGenerator = new Random();
-        // 26 for substitution, 4 for matrix, remaining for transposition
-        int totalKeySize = 26 + 4 + sizeOfMessage;
+    private static void checkMatrixSize(int matrixSize) {
+        if (matrixSize < 1 || matrixSize > MAX_MATRIX_SIZE) {
+            throw CipherMetrics.error(CipherMetrics.ErrorType.INVALID_KEY,
+                    "Error: Matrix size must be between 1 and " + MAX_MATRIX_SIZE);
+        }
+    }
+
+    private static int[] generateRandomKey(int sizeOfMessage, int matrixSize, Alphabet alphabet,
+            RandomGenerator randomGenerator) {
+        // One per symbol for substitution, n * n for matrix, remaining for transposition
+        int modulus = alphabet.size();
+        int matrixLength = matrixSize * matrixSize;
+        int transpositionStart = modulus + matrixLength;
+        int totalKeySize = transpositionStart + sizeOfMessage;
         int[] masterKey = new int[totalKeySize];
 
-        // Generates unique substitution key
-        List<Integer> substitutionPool = new ArrayList<>();
-        for (int i = 1; i <= 26; i++) {
-            substitutionPool.add(i);
-        }
-        // Shuffle and store substitution key values
-        Collections.shuffle(substitutionPool);
-        for (int i = 0; i < 26; i++) {
-            masterKey[i] = substitutionPool.get(i);
+        // Generates unique substitution key by shuffling 1 to modulus in place
+        for (int i = 0; i < modulus; i++) {
+            masterKey[i] = i + 1;
         }
+        shuffle(masterKey, 0, modulus, randomGenerator);
 
-        // Generates matrix key (4 random numbers between 1-26) ensuring invertibility
-        // modulo 26. If it isn't invertable then you become a betting man every time
-        boolean invertible = false;
-        while (!invertible) {
-            // Generate 4 random numbers for the matrix key
-            for (int i = 26; i < 30; i++) {
-                masterKey[i] = randomGenerator.nextInt(26) + 1;
-            }
-            // Extract matrix elements
-            int a = masterKey[26];
-            int b = masterKey[27];
-            int c = masterKey[28];
-            int d = masterKey[29];
-            // Compute determinant: det = a*d - b*c
-            int det = a * d - b * c;
-            // Normalize determinant modulo 26 make sure it's positive otherwise it breaks :(
-            int normalizedDet = ((det % 26) + 26) % 26;
-            // Check if the determinant is invertible modulo 26 (gcd == 1)
-            if (gcd(normalizedDet, 26) == 1) {
-                invertible = true;
+        if (matrixSize == 2 && alphabet == Alphabet.LETTERS) {
+            // Picks the matrix key straight out of the table of every 2x2 matrix (values
+            // 1-26) that is invertible modulo 26, so there's no more betting on it
+            int[] invertibleMatrices = InvertibleMatrices.TABLE;
+            int packed = invertibleMatrices[randomGenerator.nextInt(invertibleMatrices.length)];
+            for (int i = 0; i < 4; i++) {
+                masterKey[26 + i] = ((packed >>> (5 * i)) & 0x1F);
             }
+        } else {
+            // Too many bigger matrices to put in a table, but a good share of them
+            // (around a quarter modulo 26) are invertible so only a few tries are needed
+            int[] matrix = new int[matrixLength];
+            do {
+                for (int i = 0; i < matrixLength; i++) {
+                    matrix[i] = randomGenerator.nextInt(modulus) + 1;
+                }
+            } while (!ModularMatrix.isInvertible(matrix, matrixSize, modulus));
+            System.arraycopy(matrix, 0, masterKey, modulus, matrixLength);
         }
 
-        // Generates unique transposition key
-        List<Integer> transpositionPool = new ArrayList<>();
+        // Generates unique transposition key by shuffling the positions in place
         for (int i = 0; i < sizeOfMessage; i++) {
-            transpositionPool.add(i);
-        }
-        // Shuffle the positions and save to key
-        Collections.shuffle(transpositionPool);
-        for (int i = 30; i < totalKeySize; i++) {
-            masterKey[i] = transpositionPool.get(i - 30);
+            masterKey[transpositionStart + i] = i;
         }
+        shuffle(masterKey, transpositionStart, totalKeySize, randomGenerator);
 
         return masterKey;
     }
 
+    /*
+     * Reads a master key written as a comma separated list of integers, the way it
+     * gets printed and typed in. Spaces and the brackets Arrays.toString puts around
+     * it are fine. Parsed by hand so there's no split, regex or boxing involved
+     */
+    public static int[] parseMasterKey(String text) {
+        int start = 0;
+        int end = text.length();
+        while (start < end && text.charAt(start) <= ' ') {
+            start++;
+        }
+        while (end > start && text.charAt(end - 1) <= ' ') {
+            end--;
+        }
+        if (end - start >= 2 && text.charAt(start) == '[' && text.charAt(end - 1) == ']') {
+            start++;
+            end--;
+        }
+
+        // Count the commas first so the array only gets allocated once
+        int count = 1;
+        for (int i = start; i < end; i++) {
+            if (text.charAt(i) == ',') {
+                count++;
+            }
+        }
+
+        int[] values = new int[count];
+        int index = 0;
+        int i = start;
+        while (index < count) {
+            while (i < end && text.charAt(i) == ' ') {
+                i++;
+            }
+            boolean negative = i < end && text.charAt(i) == '-';
+            if (negative) {
+                i++;
+            }
+            int digits = 0;
+            long value = 0;
+            while (i < end && text.charAt(i) >= '0' && text.charAt(i) <= '9') {
+                value = value * 10 + (text.charAt(i) - '0');
+                if (value > Integer.MAX_VALUE) {
+                    throw CipherMetrics.error(CipherMetrics.ErrorType.INVALID_KEY,
+                            "Error: Master key value is out of range");
+                }
+                digits++;
+                i++;
+            }
+            while (i < end && text.charAt(i) == ' ') {
+                i++;
+            }
+            if (digits == 0 || (i < end && text.charAt(i) != ',')) {
+                throw CipherMetrics.error(CipherMetrics.ErrorType.INVALID_KEY,
+                        "Error: Master key must be a comma separated list of integers");
+            }
+            values[index++] = (int) (negative ? -value : value);
+            i++; // Skip the comma
+        }
+        return values;
+    }
+
+    // Fisher-Yates shuffle of [from, to) without boxing anything
+    static void shuffle(int[] values, int from, int to, RandomGenerator randomGenerator) {
+        for (int i = to - 1; i > from; i--) {
+            int j = from + randomGenerator.nextInt(i - from + 1);
+            int swap = values[i];
+            values[i] = values[j];
+            values[j] = swap;
+        }
+    }
+
+    /*
+     * SHA-256 of a domain tag, the matrix size, the alphabet and the master key
+     * values. It's one way, so it can go in a file header without giving the key
+     * away, and every tag gives an unrelated value. Fed through a small buffer so
+     * a long transposition doesn't get copied whole
+     */
+    byte[] digest(String domain) {
+        MessageDigest sha256;
+        try {
+            sha256 = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            // Every JVM has to have SHA-256
+            throw new IllegalStateException(e);
+        }
+        sha256.update(domain.getBytes(StandardCharsets.UTF_8));
+        ByteBuffer buffer = ByteBuffer.allocate(4096);
+        buffer.putInt(matrixSize).putInt(alphabet.ordinal()).putInt(masterKey.length);
+        for (int value : masterKey) {
+            if (!buffer.hasRemaining()) {
+                sha256.update(buffer.flip());
+                buffer.clear();
+            }
+            buffer.putInt(value);
+        }
+        sha256.update(buffer.flip());
+        return sha256.digest();
+    }
+
     // Needed to compute the GCD
-    private int gcd(int a, int b) {
+    private static int gcd(int a, int b) {
         return b == 0 ? a : gcd(b, a % b);
     }
 
+    /*
+     * Every 2x2 matrix with values 1-26 whose determinant is coprime with 26, each
+     * one packed 5 bits per value as a | b << 5 | c << 10 | d << 15. Picking one at
+     * random gives the same odds as the old retry loop did. Built the first time a
+     * key gets generated
+     */
+    private static final class InvertibleMatrices {
+        static final int[] TABLE = build();
+
+        private static int[] build() {
+            int count = 0;
+            int[] table = new int[26 * 26 * 26 * 26];
+            for (int a = 1; a <= 26; a++) {
+                for (int b = 1; b <= 26; b++) {
+                    for (int c = 1; c <= 26; c++) {
+                        for (int d = 1; d <= 26; d++) {
+                            // Normalize determinant modulo 26 make sure it's positive
+                            int normalizedDet = (((a * d - b * c) % 26) + 26) % 26;
+                            if (gcd(normalizedDet, 26) == 1) {
+                                table[count++] = a | (b << 5) | (c << 10) | (d << 15);
+                            }
+                        }
+                    }
+                }
+            }
+            return Arrays.copyOf(table, count);
+        }
+    }
+
     // Parses the parts of the keys needed
     private void parseKeys() {
         parseSubstitutionKey();
@@ -97,20 +283,18 @@ public class CipherKey {
     }
 
     private void parseSubstitutionKey() {
-        // Map the first 26 characters of the key to the hash map
-        for (int i = 0; i < 26; i++) {
+        // Map the first values of the key (one per symbol of the alphabet, 26 for letters) to the hash map
+        for (int i = 0; i < alphabet.size(); i++) {
             substitutionKey.put(i + 1, masterKey[i]);
         }
     }
 
     private void parseMatrixKey() {
-        // The matrixKey is defined as a 2x2 matrix so we take the next 4 integers
-        matrixKey = new int[4];
-
+        // The matrixKey is defined as an n x n matrix so we take the next n * n integers
         // The matrix key sits after the substitution key so we shift the index to
         // accomidate
-        for (int i = 0; i < 4; i++) {
-            matrixKey[i] = masterKey[26 + i];
+        for (int i = 0; i < matrixKey.length; i++) {
+            matrixKey[i] = masterKey[alphabet.size() + i];
         }
     }
 
@@ -118,9 +302,8 @@ public class CipherKey {
 
         // The size of the transposition key is the remaining size of the array after
         // the other two keys so we calculate that here and iterate until the end
-        transpositionKey = new int[masterKey.length - 30];
         for (int i = 0; i < transpositionKey.length; i++) {
-            transpositionKey[i] = masterKey[30 + i];
+            transpositionKey[i] = masterKey[alphabet.size() + matrixKey.length + i];
         }
     }
 
@@ -149,16 +332,32 @@ public class CipherKey {
 
     public int[][] getMatrixKey() {
         // The CustomCipher class needs a Matrix as a key so we return it as such here
-        int[][] matrix = new int[2][2];
-        matrix[0][0] = matrixKey[0]; // Assign the 1st element to matrix[0][0]
-        matrix[0][1] = matrixKey[1]; // Assign the 2nd element to matrix[0][1]
-        matrix[1][0] = matrixKey[2]; // Assign the 3rd element to matrix[1][0]
-        matrix[1][1] = matrixKey[3]; // Assign the 4th element to matrix[1][1]
+        // (row major, so element [i][j] is matrixKey[i * n + j])
+        int[][] matrix = new int[matrixSize][matrixSize];
+        for (int i = 0; i < matrixSize; i++) {
+            for (int j = 0; j < matrixSize; j++) {
+                matrix[i][j] = matrixKey[i * matrixSize + j];
+            }
+        }
         return matrix;
     }
 
+    public int getMatrixSize() {
+        return matrixSize;
+    }
+
+    public Alphabet getAlphabet() {
+        return alphabet;
+    }
+
     public int[] getTranspositionKey() {
         return transpositionKey.clone();
     }
 
+    // The precompiled lookup tables, this is shared rather than copied since
+    // nothing in it can change
+    public CompiledKey getCompiledKey() {
+        return compiledKey;
+    }
+
 }
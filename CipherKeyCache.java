@@ -0,0 +1,192 @@
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/*
+ * Bounded cache from raw master keys to ready to use CipherKeys
+ *
+ * Decoding the same few keys over and over used to mean parsing the key and
+ * building a new CipherKey (and its compiled tables) every time. Here a key is
+ * looked up by the hash of its master key values instead, and only built on a
+ * miss. CipherKeys are immutable so the cached ones are handed straight out.
+ *
+ * The entries are spread over segments by hash, each one a small LRU map behind
+ * its own lock, so threads only contend when they land on the same segment. The
+ * segment capacities add up to exactly the maximum size (a cache smaller than 16
+ * just gets fewer segments) so the cache never holds more than that. Eviction is
+ * LRU per segment which gets close to a global LRU once there are a few entries
+ * per segment. Hit, miss and eviction counts are kept so the cache can be sized
+ * from real traffic
+ */
+public class CipherKeyCache {
+
+    private static final int SEGMENTS = 16;
+
+    private final Segment[] segments;
+    private final int maximumSize;
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    public CipherKeyCache(int maximumSize) {
+        if (maximumSize <= 0) {
+            throw new IllegalArgumentException("Error: Key cache size must be positive");
+        }
+        this.maximumSize = maximumSize;
+        // A power of two so the hash can be masked, and never more segments than
+        // entries so none of them ends up with a capacity of 0
+        int count = Integer.highestOneBit(Math.min(SEGMENTS, maximumSize));
+        segments = new Segment[count];
+        for (int i = 0; i < count; i++) {
+            // The first maximumSize % count segments take one entry of the remainder each
+            segments[i] = new Segment(maximumSize / count + (i < maximumSize % count ? 1 : 0));
+        }
+    }
+
+    // Takes the key the way it gets typed in or printed: the KeyCodec text form or
+    // the legacy comma separated list of integers
+    public CipherKey get(String key) {
+        if (KeyCodec.isText(key)) {
+            return get(KeyCodec.decodeText(key));
+        }
+        return get(CipherKey.parseMasterKey(key), 2);
+    }
+
+    // Takes a key in the KeyCodec binary form and moves the buffer past it
+    public CipherKey get(ByteBuffer key) {
+        int matrixSize = KeyCodec.peekMatrixSize(key);
+        Alphabet alphabet = KeyCodec.peekAlphabet(key);
+        return get(KeyCodec.readMasterKey(key), matrixSize, alphabet);
+    }
+
+    public CipherKey get(int[] masterKey) {
+        return get(masterKey, 2);
+    }
+
+    public CipherKey get(int[] masterKey, int matrixSize) {
+        return get(masterKey, matrixSize, Alphabet.LETTERS);
+    }
+
+    public CipherKey get(int[] masterKey, int matrixSize, Alphabet alphabet) {
+        Fingerprint lookup = new Fingerprint(masterKey, matrixSize, alphabet);
+        Segment segment = segmentFor(lookup.hash);
+
+        CipherKey key = segment.get(lookup);
+        if (key != null) {
+            hits.increment();
+            return key;
+        }
+        misses.increment();
+
+        // Built outside the lock so a slow key doesn't hold up the whole segment.
+        // If two threads miss on the same key at once the first one in wins
+        key = new CipherKey(masterKey, matrixSize, alphabet);
+        return segment.putIfAbsent(new Fingerprint(key.getMasterKey(), matrixSize, alphabet), key);
+    }
+
+    public long getHitCount() {
+        return hits.sum();
+    }
+
+    public long getMissCount() {
+        return misses.sum();
+    }
+
+    public long getEvictionCount() {
+        return evictions.sum();
+    }
+
+    public int getMaximumSize() {
+        return maximumSize;
+    }
+
+    public int size() {
+        int size = 0;
+        for (Segment segment : segments) {
+            size += segment.size();
+        }
+        return size;
+    }
+
+    public void clear() {
+        for (Segment segment : segments) {
+            segment.clear();
+        }
+    }
+
+    private Segment segmentFor(int hash) {
+        // Mix the high bits in since Arrays.hashCode is weak in the low ones
+        int spread = hash ^ (hash >>> 16);
+        return segments[spread & (segments.length - 1)];
+    }
+
+    // The master key values plus the matrix size and alphabet they are read with
+    private static final class Fingerprint {
+        final int[] values;
+        final int matrixSize;
+        final Alphabet alphabet;
+        final int hash;
+
+        Fingerprint(int[] values, int matrixSize, Alphabet alphabet) {
+            this.values = values;
+            this.matrixSize = matrixSize;
+            this.alphabet = alphabet;
+            this.hash = 31 * (31 * Arrays.hashCode(values) + matrixSize) + alphabet.ordinal();
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            if (!(other instanceof Fingerprint)) {
+                return false;
+            }
+            Fingerprint that = (Fingerprint) other;
+            return hash == that.hash && matrixSize == that.matrixSize && alphabet == that.alphabet
+                    && Arrays.equals(values, that.values);
+        }
+    }
+
+    // One access ordered map behind a lock, the least recently used entry goes
+    // once it's full
+    private final class Segment {
+        private final Map<Fingerprint, CipherKey> entries;
+
+        Segment(int capacity) {
+            this.entries = new LinkedHashMap<>(16, 0.75f, true) {
+                private static final long serialVersionUID = 1L;
+
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<Fingerprint, CipherKey> eldest) {
+                    if (size() > capacity) {
+                        evictions.increment();
+                        return true;
+                    }
+                    return false;
+                }
+            };
+        }
+
+        synchronized CipherKey get(Fingerprint key) {
+            return entries.get(key);
+        }
+
+        synchronized CipherKey putIfAbsent(Fingerprint key, CipherKey value) {
+            CipherKey existing = entries.putIfAbsent(key, value);
+            return existing != null ? existing : value;
+        }
+
+        synchronized int size() {
+            return entries.size();
+        }
+
+        synchronized void clear() {
+            entries.clear();
+        }
+    }
+}
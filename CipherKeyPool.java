@@ -0,0 +1,115 @@
+import java.util.SplittableRandom;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.random.RandomGenerator;
+
+/*
+ * Keeps a stock of freshly generated keys for one message (or block) size
+ *
+ * A background daemon thread generates keys until the pool is full and tops it up
+ * as keys get taken, so take() normally just hands over a key that is already
+ * built. If the pool ever runs dry take() generates one on the spot instead of
+ * waiting, the request path never blocks on the filler thread. Either way the key
+ * comes from the generator the pool was built with
+ */
+public class CipherKeyPool implements AutoCloseable {
+
+    private final int sizeOfMessage;
+    private final RandomGenerator randomGenerator;
+    private final BlockingQueue<CipherKey> keys;
+    private final Thread filler;
+
+    public CipherKeyPool(int sizeOfMessage, int capacity) {
+        this(sizeOfMessage, capacity, new SplittableRandom());
+    }
+
+    // The generator is shared by the filler thread and take() under a lock, so it
+    // doesn't need to be thread-safe itself
+    public CipherKeyPool(int sizeOfMessage, int capacity, RandomGenerator randomGenerator) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("Error: Key pool capacity must be positive");
+        }
+        this.sizeOfMessage = sizeOfMessage;
+        this.randomGenerator = new LockedGenerator(randomGenerator);
+        this.keys = new ArrayBlockingQueue<>(capacity);
+        this.filler = new Thread(this::fill, "cipher-key-pool-" + sizeOfMessage);
+        this.filler.setDaemon(true);
+        this.filler.start();
+    }
+
+    // Hands out a ready made key, or generates one right here if the pool is empty
+    public CipherKey take() {
+        CipherKey key = keys.poll();
+        return key != null ? key : new CipherKey(sizeOfMessage, randomGenerator);
+    }
+
+    // Number of keys that are ready to go right now
+    public int available() {
+        return keys.size();
+    }
+
+    public int getSizeOfMessage() {
+        return sizeOfMessage;
+    }
+
+    // Stops the filler thread, keys already in the pool can still be taken
+    @Override
+    public void close() {
+        filler.interrupt();
+    }
+
+    private void fill() {
+        try {
+            while (!Thread.currentThread().isInterrupted()) {
+                // put() blocks while the pool is full so this only runs when needed
+                keys.put(new CipherKey(sizeOfMessage, randomGenerator));
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /*
+     * Serializes every draw on the wrapped generator. Only the lock is added, the
+     * numbers are still the wrapped generator's own (a SecureRandom stays a
+     * SecureRandom). Locking per draw instead of per key means the filler and a
+     * take() that found the pool empty interleave instead of waiting on each other
+     */
+    private static final class LockedGenerator implements RandomGenerator {
+        private final RandomGenerator generator;
+
+        LockedGenerator(RandomGenerator generator) {
+            this.generator = generator;
+        }
+
+        @Override
+        public synchronized long nextLong() {
+            return generator.nextLong();
+        }
+
+        @Override
+        public synchronized int nextInt() {
+            return generator.nextInt();
+        }
+
+        @Override
+        public synchronized int nextInt(int bound) {
+            return generator.nextInt(bound);
+        }
+
+        @Override
+        public synchronized int nextInt(int origin, int bound) {
+            return generator.nextInt(origin, bound);
+        }
+
+        @Override
+        public synchronized double nextDouble() {
+            return generator.nextDouble();
+        }
+
+        @Override
+        public synchronized boolean nextBoolean() {
+            return generator.nextBoolean();
+        }
+    }
+}
@@ -0,0 +1,18 @@
+/*
+ * Hook for anything that wants to see every cipher operation as it happens, like
+ * an exporter to a metrics system. Listeners get added through
+ * CipherMetrics.addListener and are only called while metrics are enabled.
+ *
+ * The calls come from whichever thread did the work, right on the hot path, so
+ * listeners need to be thread-safe and quick
+ */
+public interface CipherListener {
+
+    // An operation finished, bytes is how many letters it produced
+    default void operationCompleted(CipherMetrics.Operation operation, long bytes, long nanos) {
+    }
+
+    // An operation was rejected, the message is the one on the exception
+    default void errorOccurred(CipherMetrics.ErrorType type, String message) {
+    }
+}
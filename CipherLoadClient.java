@@ -0,0 +1,140 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.SocketChannel;
+import java.util.Arrays;
+import java.util.SplittableRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+ * Load generator for CipherServer
+ *
+ *   java CipherLoadClient <address> [connections] [requests per connection]
+ *                         [message size] [pipeline depth]
+ *
+ * The address is host:port, a port on localhost or unix:/path. Every connection
+ * gets its own thread and keeps up to pipeline depth requests in flight,
+ * alternating encodes and decodes of a random message under one key, and checks
+ * every answer against the result worked out locally. At the end it prints the
+ * throughput and the latency percentiles (measured from when a request was written
+ * to when its response was read, so time spent queued behind the rest of the
+ * pipeline counts). Keep depth * message size under the socket buffers or the
+ * client and server can end up both waiting on a full buffer
+ */
+public class CipherLoadClient {
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 1) {
+            System.out.println("Usage: java CipherLoadClient <host:port | port | unix:/path> [connections]"
+                    + " [requests per connection] [message size] [pipeline depth]");
+            return;
+        }
+        SocketAddress address = CipherProtocol.parseAddress(args[0]);
+        int connections = args.length > 1 ? Integer.parseInt(args[1]) : 4;
+        int requests = args.length > 2 ? Integer.parseInt(args[2]) : 100000;
+        int messageSize = args.length > 3 ? Integer.parseInt(args[3]) : 64;
+        int depth = args.length > 4 ? Integer.parseInt(args[4]) : 16;
+
+        LatencyHistogram latency = new LatencyHistogram();
+        AtomicLong failures = new AtomicLong();
+        Thread[] threads = new Thread[connections];
+        long start = System.nanoTime();
+        for (int i = 0; i < connections; i++) {
+            long seed = i;
+            threads[i] = new Thread(() -> {
+                try {
+                    failures.addAndGet(run(address, requests, messageSize, depth, seed, latency));
+                } catch (IOException e) {
+                    System.out.println("Error: " + e.getMessage());
+                    failures.addAndGet(requests);
+                }
+            }, "cipher-load-" + i);
+            threads[i].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        long elapsed = System.nanoTime() - start;
+
+        long total = latency.getCount();
+        double seconds = elapsed / 1e9;
+        System.out.printf("Requests:   %d in %.2f s (%d failed)%n", total, seconds, failures.get());
+        System.out.printf("Throughput: %.0f requests/s, %.1f MB/s%n", total / seconds,
+                total * (double) messageSize / seconds / (1 << 20));
+        System.out.printf("Latency:    p50 %.1f us, p99 %.1f us, p99.9 %.1f us, max %.1f us%n",
+                latency.getPercentile(50) / 1e3, latency.getPercentile(99) / 1e3,
+                latency.getPercentile(99.9) / 1e3, latency.getMaxNanos() / 1e3);
+    }
+
+    // Runs one connection and returns how many requests came back wrong
+    private static long run(SocketAddress address, int requests, int messageSize, int depth, long seed,
+            LatencyHistogram latency) throws IOException {
+        SplittableRandom random = new SplittableRandom(seed);
+        CipherKey key = new CipherKey(messageSize, random);
+        byte[] keyBytes = KeyCodec.toBytes(key);
+        byte[] plaintext = new byte[messageSize];
+        for (int i = 0; i < messageSize; i++) {
+            plaintext[i] = (byte) ('A' + random.nextInt(26));
+        }
+        CustomCipher cipher = new CustomCipher();
+        byte[] cipherText = new byte[CustomCipher.encodedLength(messageSize, key)];
+        cipher.encode(plaintext, 0, messageSize, key, cipherText, 0);
+        // Decoding gives back the padding too so the expected answer comes from here
+        byte[] decoded = new byte[cipherText.length];
+        cipher.decode(cipherText, 0, cipherText.length, key, decoded, 0);
+
+        long failures = 0;
+        long[] sentAt = new long[depth];
+        byte[] response = new byte[cipherText.length + 64];
+        try (SocketChannel channel = CipherProtocol.connect(address)) {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel)));
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel)));
+            int sent = 0;
+            int received = 0;
+            while (received < requests) {
+                // Top the pipeline back up, then wait for the oldest answer
+                while (sent < requests && sent - received < depth) {
+                    boolean encode = (sent & 1) == 0;
+                    CipherProtocol.writeFrame(out, encode ? CipherProtocol.OP_ENCODE : CipherProtocol.OP_DECODE,
+                            sent, keyBytes, 0, keyBytes.length, encode ? plaintext : cipherText, 0,
+                            encode ? plaintext.length : cipherText.length);
+                    sentAt[sent % depth] = System.nanoTime();
+                    sent++;
+                }
+                out.flush();
+
+                int length = CipherProtocol.readFrameLength(in);
+                if (length == -1) {
+                    throw new IOException("Server closed the connection");
+                }
+                if (response.length < length) {
+                    response = new byte[length];
+                }
+                in.readFully(response, 0, length);
+                latency.record(System.nanoTime() - sentAt[received % depth]);
+                if (!check(response, length, received, (received & 1) == 0 ? cipherText : decoded)) {
+                    failures++;
+                }
+                received++;
+            }
+        }
+        return failures;
+    }
+
+    private static boolean check(byte[] response, int length, int requestId, byte[] expected) {
+        if (response[0] != CipherProtocol.STATUS_OK || readInt(response, 1) != requestId) {
+            return false;
+        }
+        int payloadOffset = CipherProtocol.HEADER_LENGTH + readInt(response, 5);
+        return Arrays.equals(response, payloadOffset, length, expected, 0, expected.length);
+    }
+
+    private static int readInt(byte[] bytes, int offset) {
+        return (bytes[offset] << 24) | ((bytes[offset + 1] & 0xFF) << 16) | ((bytes[offset + 2] & 0xFF) << 8)
+                | (bytes[offset + 3] & 0xFF);
+    }
+}
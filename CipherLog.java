@@ -0,0 +1,323 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+import java.util.SplittableRandom;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/*
+ * Append only encrypted log, for data that keeps growing
+ *
+ * An ordinary key's transposition spans the whole message, so adding to a message
+ * means a new key and encoding everything again. A log instead cuts what gets
+ * appended into segments of at most the base key's transposition length and
+ * encodes each on its own. Every segment gets its own transposition key: a
+ * Fisher-Yates shuffle seeded with an HMAC of the segment's number, keyed by a
+ * hash of the whole base key. The substitution and matrix stay the base key's. Appending or decoding a segment
+ * only ever costs that segment, however long the log is.
+ *
+ * The cipher goes in the log file itself, segment after segment with nothing in
+ * between, and a sidecar file (the log's name plus ".idx") holds the index:
+ *
+ *   header   'C' 'L', version, matrix size, max segment size (4 bytes),
+ *            key check (8 bytes)
+ *   entries  one per segment: where its cipher starts in the log (8 bytes) and
+ *            how long its plaintext is (4 bytes)
+ *
+ * A segment's cipher is its plaintext padded up to the matrix size. The log is
+ * written before the index entry, so after a crash the index can be missing the
+ * last segment but never points past the end of the log. Opening a log drops
+ * anything the index doesn't account for. The key check (the start of a SHA-256 of
+ * the base key under its own tag) lets open tell a wrong key apart from a corrupt
+ * log, and nothing in either file leads back to the segment keys
+ */
+public class CipherLog implements Closeable {
+
+    public static final String INDEX_SUFFIX = ".idx";
+
+    private static final byte MAGIC_0 = 'C';
+    private static final byte MAGIC_1 = 'L';
+    private static final int VERSION = 2;
+    private static final int HEADER_LENGTH = 16;
+    private static final int ENTRY_LENGTH = 12;
+
+    // How many index entries load() reads at once
+    private static final int CHUNK_ENTRIES = (1 << 20) / ENTRY_LENGTH;
+
+    private final CustomCipher cipher = new CustomCipher();
+    private final CipherKey baseKey;
+    private final int matrixSize;
+    private final int maxSegmentSize;
+    private final int[] keyPrefix;
+    private final SecretKeySpec segmentSecret;
+    private final long keyCheck;
+    private final FileChannel log;
+    private final FileChannel index;
+    private final byte[] cipherBuffer;
+
+    // Where each segment's cipher starts in the log and its plaintext length
+    private long[] offsets = new long[16];
+    private int[] lengths = new int[16];
+    private int count;
+    private long logSize;
+    private long size;
+
+    private CipherLog(Path file, CipherKey baseKey) throws IOException {
+        this.baseKey = baseKey;
+        this.matrixSize = baseKey.getMatrixSize();
+        this.maxSegmentSize = CustomCipher.checkBlockKey(baseKey.getCompiledKey());
+        // The substitution and matrix every segment key starts with, built once
+        // so a segment doesn't cost a copy of the base key's whole transposition
+        int[] masterKey = baseKey.getMasterKey();
+        this.keyPrefix = Arrays.copyOf(masterKey, masterKey.length - maxSegmentSize);
+        this.segmentSecret = new SecretKeySpec(baseKey.digest("CipherLog segment keys"), "HmacSHA256");
+        this.keyCheck = ByteBuffer.wrap(baseKey.digest("CipherLog key check")).getLong();
+        this.cipherBuffer = new byte[maxSegmentSize];
+        this.log = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE,
+                StandardOpenOption.CREATE);
+        try {
+            this.index = FileChannel.open(file.resolveSibling(file.getFileName() + INDEX_SUFFIX),
+                    StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.CREATE);
+        } catch (IOException e) {
+            log.close();
+            throw e;
+        }
+    }
+
+    /*
+     * Opens the log at file (and its index next to it), creating both when the log
+     * is new. The base key has to be the one the log was started with
+     */
+    public static CipherLog open(Path file, CipherKey baseKey) throws IOException {
+        CipherLog cipherLog = new CipherLog(file, baseKey);
+        try {
+            cipherLog.load();
+        } catch (IOException | RuntimeException e) {
+            cipherLog.close();
+            throw e;
+        }
+        return cipherLog;
+    }
+
+    /*
+     * Encodes the bytes as one or more new segments (a new one every max segment
+     * size bytes) and returns the number of the first one. The bytes all have to be
+     * in the key's alphabet, they are checked before anything is written
+     */
+    public synchronized int append(byte[] plaintext, int offset, int length) throws IOException {
+        int first = count;
+        int[] valueTable = baseKey.getCompiledKey().valueTable;
+        for (int i = 0; i < length; i++) {
+            CustomCipher.toDigitValue(plaintext[offset + i] & 0xFF, valueTable);
+        }
+
+        for (int done = 0; done < length; done += maxSegmentSize) {
+            int segmentLength = Math.min(maxSegmentSize, length - done);
+            int n = cipher.encode(plaintext, offset + done, segmentLength, segmentKey(count, segmentLength),
+                    cipherBuffer, 0);
+            writeFully(log, ByteBuffer.wrap(cipherBuffer, 0, n), logSize);
+
+            ByteBuffer entry = ByteBuffer.allocate(ENTRY_LENGTH).putLong(logSize).putInt(segmentLength).flip();
+            writeFully(index, entry, HEADER_LENGTH + (long) count * ENTRY_LENGTH);
+            add(logSize, segmentLength);
+        }
+        return first;
+    }
+
+    public int append(byte[] plaintext) throws IOException {
+        return append(plaintext, 0, plaintext.length);
+    }
+
+    // Decodes one segment, only its own cipher gets read
+    public byte[] readSegment(int segment) throws IOException {
+        byte[] plaintext = new byte[getSegmentLength(segment)];
+        readSegment(segment, plaintext, 0);
+        return plaintext;
+    }
+
+    // Same into a buffer with room for getSegmentLength(segment) bytes, returns
+    // how many were written
+    public int readSegment(int segment, byte[] out, int outOffset) throws IOException {
+        long offset;
+        int length;
+        synchronized (this) {
+            checkSegment(segment);
+            offset = offsets[segment];
+            length = lengths[segment];
+        }
+        int n = CustomCipher.encodedLength(length, matrixSize);
+        byte[] cipherText = new byte[n];
+        ByteBuffer buffer = ByteBuffer.wrap(cipherText);
+        while (buffer.hasRemaining()) {
+            if (log.read(buffer, offset + buffer.position()) < 0) {
+                throw new IOException("Error: Cipher log is truncated");
+            }
+        }
+        if (n == length) {
+            return cipher.decode(cipherText, 0, n, segmentKey(segment, length), out, outOffset);
+        }
+        byte[] padded = new byte[n];
+        cipher.decode(cipherText, 0, n, segmentKey(segment, length), padded, 0);
+        System.arraycopy(padded, 0, out, outOffset, length);
+        return length;
+    }
+
+    public synchronized int getSegmentCount() {
+        return count;
+    }
+
+    public synchronized int getSegmentLength(int segment) {
+        checkSegment(segment);
+        return lengths[segment];
+    }
+
+    // Plaintext bytes in the whole log
+    public synchronized long size() {
+        return size;
+    }
+
+    public int getMaxSegmentSize() {
+        return maxSegmentSize;
+    }
+
+    // Flushes the log and its index to the disk
+    public synchronized void sync() throws IOException {
+        log.force(false);
+        index.force(false);
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            log.close();
+        } finally {
+            index.close();
+        }
+    }
+
+    /*
+     * The key for one segment: the base key's substitution and matrix followed by a
+     * transposition for the segment's padded length, shuffled by a generator seeded
+     * with the HMAC of the segment number
+     */
+    CipherKey segmentKey(long segment, int length) {
+        int transpositionStart = keyPrefix.length;
+        int n = CustomCipher.encodedLength(length, matrixSize);
+        int[] segmentKey = Arrays.copyOf(keyPrefix, transpositionStart + n);
+        for (int i = 0; i < n; i++) {
+            segmentKey[transpositionStart + i] = i;
+        }
+        CipherKey.shuffle(segmentKey, transpositionStart, segmentKey.length, new SplittableRandom(seedOf(segment)));
+        return new CipherKey(segmentKey, matrixSize, baseKey.getAlphabet());
+    }
+
+    // Keyed by a hash of the base key, so the seeds can't be worked out from
+    // anything that gets written down
+    private long seedOf(long segment) {
+        try {
+            Mac hmac = Mac.getInstance("HmacSHA256");
+            hmac.init(segmentSecret);
+            return ByteBuffer.wrap(hmac.doFinal(ByteBuffer.allocate(8).putLong(segment).array())).getLong();
+        } catch (GeneralSecurityException e) {
+            // Every JVM has to have HmacSHA256
+            throw new IllegalStateException(e);
+        }
+    }
+
+    // Reads the index, or writes a fresh header for a new log, and drops whatever
+    // an interrupted append left behind
+    private void load() throws IOException {
+        if (index.size() < HEADER_LENGTH) {
+            if (log.size() != 0) {
+                throw new IOException("Error: Cipher log is missing its index");
+            }
+            ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH);
+            header.put(MAGIC_0).put(MAGIC_1).put((byte) VERSION).put((byte) matrixSize).putInt(maxSegmentSize)
+                    .putLong(keyCheck).flip();
+            index.truncate(0);
+            writeFully(index, header, 0);
+            return;
+        }
+
+        ByteBuffer header = readFully(index, 0, HEADER_LENGTH);
+        if (header.get() != MAGIC_0 || header.get() != MAGIC_1) {
+            throw new IOException("Error: Not a cipher log index");
+        }
+        int version = header.get();
+        if (version != VERSION) {
+            throw new IOException("Error: Unsupported cipher log version " + version);
+        }
+        if ((header.get() & 0xFF) != matrixSize || header.getInt() != maxSegmentSize
+                || header.getLong() != keyCheck) {
+            throw new IOException("Error: Cipher log was written with a different key");
+        }
+
+        long entries = (index.size() - HEADER_LENGTH) / ENTRY_LENGTH;
+        if (entries > Integer.MAX_VALUE) {
+            throw new IOException("Error: Cipher log index is too big");
+        }
+        long available = log.size();
+        // Read a chunk of entries at a time, the whole index can be bigger than
+        // one buffer can hold
+        ByteBuffer buffer = ByteBuffer.allocate(0);
+        for (long entry = 0; entry < entries; entry++) {
+            if (!buffer.hasRemaining()) {
+                int chunk = (int) Math.min(CHUNK_ENTRIES, entries - entry);
+                buffer = readFully(index, HEADER_LENGTH + entry * ENTRY_LENGTH, chunk * ENTRY_LENGTH);
+            }
+            long offset = buffer.getLong();
+            int length = buffer.getInt();
+            if (offset != logSize || length <= 0 || length > maxSegmentSize) {
+                throw new IOException("Error: Corrupt cipher log index");
+            }
+            // The log is forced no later than the index, but without a sync the
+            // disk can still have kept the entry and lost the cipher
+            if (offset + CustomCipher.encodedLength(length, matrixSize) > available) {
+                break;
+            }
+            add(offset, length);
+        }
+        index.truncate(HEADER_LENGTH + (long) count * ENTRY_LENGTH);
+        log.truncate(logSize);
+    }
+
+    private void add(long offset, int length) {
+        if (count == offsets.length) {
+            offsets = Arrays.copyOf(offsets, count * 2);
+            lengths = Arrays.copyOf(lengths, count * 2);
+        }
+        offsets[count] = offset;
+        lengths[count] = length;
+        count++;
+        logSize = offset + CustomCipher.encodedLength(length, matrixSize);
+        size += length;
+    }
+
+    private void checkSegment(int segment) {
+        if (segment < 0 || segment >= count) {
+            throw new IndexOutOfBoundsException("Error: No segment " + segment + " in a log of " + count);
+        }
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+    }
+
+    private static ByteBuffer readFully(FileChannel channel, long position, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new IOException("Error: Cipher log index is truncated");
+            }
+        }
+        return buffer.flip();
+    }
+}
@@ -0,0 +1,272 @@
+import java.lang.management.ManagementFactory;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.ToLongFunction;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/*
+ * Counters and latency histograms for everything the cipher does
+ *
+ * Off by default. While it's off the only cost on the hot path is one volatile
+ * read per operation (start() hands back 0 and record() returns straight away),
+ * no clock reads and no allocation. Turn it on with setEnabled(true) or by
+ * starting the JVM with -Dcipher.metrics=true, which also registers the MXBean.
+ *
+ * Per operation it keeps a count, the bytes produced and a LatencyHistogram.
+ * Errors are counted by type. On top of that every operation goes to the
+ * registered CipherListeners and to a CipherEvent for JFR recordings. Since the
+ * fused kernel does substitution, matrix and transposition in one pass the
+ * latencies are per operation rather than per stage
+ */
+public final class CipherMetrics {
+
+    public enum Operation {
+        ENCODE, DECODE, ENCODE_BATCH, DECODE_BATCH, FILE_ENCODE, FILE_DECODE, KEY_BUILD
+    }
+
+    public enum ErrorType {
+        INCORRECT_INPUT, LENGTH_MISMATCH, NOT_INVERTIBLE, INVALID_KEY
+    }
+
+    public static final String OBJECT_NAME = "io.github.sorcererscode.cipher:type=CipherMetrics";
+
+    private static final Operation[] OPERATIONS = Operation.values();
+    private static final ErrorType[] ERROR_TYPES = ErrorType.values();
+
+    private static volatile boolean enabled = Boolean.getBoolean("cipher.metrics");
+
+    private static final LongAdder[] counts = newAdders(OPERATIONS.length);
+    private static final LongAdder[] bytes = newAdders(OPERATIONS.length);
+    private static final LatencyHistogram[] latencies = new LatencyHistogram[OPERATIONS.length];
+    private static final LongAdder[] errors = newAdders(ERROR_TYPES.length);
+    private static final List<CipherListener> listeners = new CopyOnWriteArrayList<>();
+    private static final List<CipherKeyCache> keyCaches = new CopyOnWriteArrayList<>();
+
+    static {
+        for (int i = 0; i < latencies.length; i++) {
+            latencies[i] = new LatencyHistogram();
+        }
+        if (enabled) {
+            registerMBean();
+        }
+    }
+
+    private CipherMetrics() {
+    }
+
+    public static boolean isEnabled() {
+        return enabled;
+    }
+
+    public static void setEnabled(boolean enabled) {
+        CipherMetrics.enabled = enabled;
+    }
+
+    public static void addListener(CipherListener listener) {
+        listeners.add(listener);
+    }
+
+    public static void removeListener(CipherListener listener) {
+        listeners.remove(listener);
+    }
+
+    // Key caches registered here have their stats added up in the MXBean
+    public static void registerKeyCache(CipherKeyCache cache) {
+        keyCaches.add(cache);
+    }
+
+    public static void unregisterKeyCache(CipherKeyCache cache) {
+        keyCaches.remove(cache);
+    }
+
+    /*
+     * Registers the MXBean with the platform MBean server, doing it again is
+     * harmless. Returns false if JMX refused it
+     */
+    public static synchronized boolean registerMBean() {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(OBJECT_NAME);
+            if (!server.isRegistered(name)) {
+                server.registerMBean(new MXBean(), name);
+            }
+            return true;
+        } catch (JMException e) {
+            return false;
+        }
+    }
+
+    public static long getCount(Operation operation) {
+        return counts[operation.ordinal()].sum();
+    }
+
+    public static long getBytes(Operation operation) {
+        return bytes[operation.ordinal()].sum();
+    }
+
+    public static LatencyHistogram getLatency(Operation operation) {
+        return latencies[operation.ordinal()];
+    }
+
+    public static long getErrorCount(ErrorType type) {
+        return errors[type.ordinal()].sum();
+    }
+
+    public static void reset() {
+        for (int i = 0; i < OPERATIONS.length; i++) {
+            counts[i].reset();
+            bytes[i].reset();
+            latencies[i].reset();
+        }
+        for (LongAdder adder : errors) {
+            adder.reset();
+        }
+    }
+
+    /*
+     * Hot path hooks
+     *
+     * long startTime = CipherMetrics.start();
+     * ... the operation ...
+     * CipherMetrics.record(Operation.ENCODE, n, startTime);
+     */
+    static long start() {
+        // 0 doubles as "metrics were off when the operation started"
+        return enabled ? System.nanoTime() | 1 : 0;
+    }
+
+    static void record(Operation operation, long byteCount, long start) {
+        if (start == 0) {
+            return;
+        }
+        long nanos = System.nanoTime() - start;
+        int index = operation.ordinal();
+        counts[index].increment();
+        bytes[index].add(byteCount);
+        latencies[index].record(nanos);
+
+        for (CipherListener listener : listeners) {
+            listener.operationCompleted(operation, byteCount, nanos);
+        }
+
+        CipherEvent event = new CipherEvent();
+        if (event.shouldCommit()) {
+            event.operation = operation.name();
+            event.bytes = byteCount;
+            event.latency = nanos;
+            event.commit();
+        }
+    }
+
+    // Counts the error and hands back the exception for the caller to throw
+    static IllegalArgumentException error(ErrorType type, String message) {
+        if (enabled) {
+            errors[type.ordinal()].increment();
+            for (CipherListener listener : listeners) {
+                listener.errorOccurred(type, message);
+            }
+        }
+        return new IllegalArgumentException(message);
+    }
+
+    private static LongAdder[] newAdders(int length) {
+        LongAdder[] adders = new LongAdder[length];
+        for (int i = 0; i < length; i++) {
+            adders[i] = new LongAdder();
+        }
+        return adders;
+    }
+
+    private static long sumKeyCaches(ToLongFunction<CipherKeyCache> stat) {
+        long sum = 0;
+        for (CipherKeyCache cache : keyCaches) {
+            sum += stat.applyAsLong(cache);
+        }
+        return sum;
+    }
+
+    private static Map<String, Long> perOperation(ToLongFunction<Operation> stat) {
+        Map<String, Long> values = new LinkedHashMap<>();
+        for (Operation operation : OPERATIONS) {
+            values.put(operation.name(), stat.applyAsLong(operation));
+        }
+        return values;
+    }
+
+    private static final class MXBean implements CipherMetricsMXBean {
+
+        @Override
+        public boolean isEnabled() {
+            return CipherMetrics.isEnabled();
+        }
+
+        @Override
+        public void setEnabled(boolean enabled) {
+            CipherMetrics.setEnabled(enabled);
+        }
+
+        @Override
+        public Map<String, Long> getOperationCounts() {
+            return perOperation(CipherMetrics::getCount);
+        }
+
+        @Override
+        public Map<String, Long> getBytesProcessed() {
+            return perOperation(CipherMetrics::getBytes);
+        }
+
+        @Override
+        public Map<String, Long> getLatencyP50Nanos() {
+            return perOperation(operation -> getLatency(operation).getPercentile(50));
+        }
+
+        @Override
+        public Map<String, Long> getLatencyP99Nanos() {
+            return perOperation(operation -> getLatency(operation).getPercentile(99));
+        }
+
+        @Override
+        public Map<String, Long> getLatencyMaxNanos() {
+            return perOperation(operation -> getLatency(operation).getMaxNanos());
+        }
+
+        @Override
+        public Map<String, Long> getErrorCounts() {
+            Map<String, Long> values = new LinkedHashMap<>();
+            for (ErrorType type : ERROR_TYPES) {
+                values.put(type.name(), getErrorCount(type));
+            }
+            return values;
+        }
+
+        @Override
+        public long getKeyCacheHits() {
+            return sumKeyCaches(CipherKeyCache::getHitCount);
+        }
+
+        @Override
+        public long getKeyCacheMisses() {
+            return sumKeyCaches(CipherKeyCache::getMissCount);
+        }
+
+        @Override
+        public long getKeyCacheEvictions() {
+            return sumKeyCaches(CipherKeyCache::getEvictionCount);
+        }
+
+        @Override
+        public long getKeyCacheSize() {
+            return sumKeyCaches(CipherKeyCache::size);
+        }
+
+        @Override
+        public void reset() {
+            CipherMetrics.reset();
+        }
+    }
+}
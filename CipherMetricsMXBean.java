@@ -0,0 +1,34 @@
+import java.util.Map;
+
+/*
+ * What CipherMetrics shows over JMX, under the name in CipherMetrics.OBJECT_NAME.
+ * The maps are keyed by operation (or error type) name
+ */
+public interface CipherMetricsMXBean {
+
+    boolean isEnabled();
+
+    void setEnabled(boolean enabled);
+
+    Map<String, Long> getOperationCounts();
+
+    Map<String, Long> getBytesProcessed();
+
+    Map<String, Long> getLatencyP50Nanos();
+
+    Map<String, Long> getLatencyP99Nanos();
+
+    Map<String, Long> getLatencyMaxNanos();
+
+    Map<String, Long> getErrorCounts();
+
+    long getKeyCacheHits();
+
+    long getKeyCacheMisses();
+
+    long getKeyCacheEvictions();
+
+    long getKeyCacheSize();
+
+    void reset();
+}
@@ -0,0 +1,405 @@
+import java.io.IOException;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Flow;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+ * Flow pipeline stage that encodes (or decodes) a stream of byte[] chunks
+ *
+ * The chunks are read as one continuous message in the same layout as
+ * CustomCipherOutputStream: cut into blocks the size of the key's transposition
+ * key, the last block padded and followed by the trailer. So the chunks coming in
+ * can be any size, and what comes out of an encoder can be fed to a
+ * CustomCipherInputStream (and the other way round).
+ *
+ * Everything the stage does runs on the executor, one drain at a time, so the
+ * subscriber always gets its signals in order. Chunks that arrive while a drain
+ * is busy are coalesced and go through encodeBatch/decodeBatch together (up to
+ * batchSize bytes per output chunk), which keeps the per call key setup off small
+ * chunks.
+ *
+ * Backpressure is demand driven both ways. Upstream only gets asked for more
+ * (prefetch chunks at a time) while the subscriber has outstanding demand and
+ * less than a batch is waiting, so a slow subscriber stops the reading instead of
+ * having the data pile up here. At most a batch plus prefetch chunks are ever
+ * held. One subscriber per processor
+ */
+public class CipherProcessor implements Flow.Processor<byte[], byte[]> {
+
+    public enum Mode {
+        ENCODE, DECODE
+    }
+
+    public static final int DEFAULT_BATCH_SIZE = 64 * 1024;
+    public static final int DEFAULT_PREFETCH = 16;
+
+    private final CustomCipher cipher = new CustomCipher();
+    private final CipherKey blockKey;
+    private final Alphabet alphabet;
+    private final Mode mode;
+    private final Executor executor;
+    private final int blockSize;
+    private final int batchSize;
+    private final int refillBelow;
+    private final int prefetch;
+
+    // Signals from either side only touch these, the drain picks them up
+    private final Queue<byte[]> inbox = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger wip = new AtomicInteger();
+    private final AtomicLong demand = new AtomicLong();
+    private volatile Flow.Subscription upstream;
+    private volatile Flow.Subscriber<? super byte[]> downstream;
+    private volatile boolean upstreamDone;
+    private volatile Throwable upstreamError;
+    private volatile boolean cancelled;
+    private volatile Throwable requestError;
+
+    // Only ever touched from inside the drain
+    private boolean subscribed;
+    private boolean finished;
+    private boolean terminated;
+    private long outstanding;
+    private byte[] pending;
+    private int pendingLength;
+    private final int[] batchOffsets = new int[2];
+    private final int[] outOffsets = new int[2];
+
+    public CipherProcessor(CipherKey blockKey, Mode mode) {
+        this(blockKey, mode, ForkJoinPool.commonPool(), DEFAULT_BATCH_SIZE, DEFAULT_PREFETCH);
+    }
+
+    public CipherProcessor(CipherKey blockKey, Mode mode, Executor executor) {
+        this(blockKey, mode, executor, DEFAULT_BATCH_SIZE, DEFAULT_PREFETCH);
+    }
+
+    /*
+     * batchSize is how many bytes at most go into one output chunk (rounded down
+     * to whole blocks, never less than one), prefetch how many chunks get
+     * requested from upstream at a time
+     */
+    public CipherProcessor(CipherKey blockKey, Mode mode, Executor executor, int batchSize, int prefetch) {
+        if (batchSize <= 0 || prefetch <= 0) {
+            throw new IllegalArgumentException("Error: Batch size and prefetch must be positive");
+        }
+        this.blockKey = blockKey;
+        this.alphabet = blockKey.getAlphabet();
+        this.mode = mode;
+        this.executor = executor;
+        this.blockSize = CustomCipher.checkBlockKey(blockKey.getCompiledKey());
+        if (mode == Mode.DECODE) {
+            CustomCipher.checkInvertible(blockKey.getCompiledKey());
+        }
+        this.batchSize = Math.max(1, batchSize / blockSize) * blockSize;
+        // A decoder can't hand on a block until more than a trailer has come in
+        // behind it, so a whole batch is only ready with that much extra buffered
+        this.refillBelow = mode == Mode.DECODE
+                ? this.batchSize + CustomCipherOutputStream.TRAILER_LENGTH + 1
+                : this.batchSize;
+        this.prefetch = prefetch;
+        this.pending = new byte[this.batchSize + blockSize + CustomCipherOutputStream.TRAILER_LENGTH];
+    }
+
+    @Override
+    public void subscribe(Flow.Subscriber<? super byte[]> subscriber) {
+        if (subscriber == null) {
+            throw new NullPointerException();
+        }
+        synchronized (this) {
+            if (downstream == null) {
+                downstream = subscriber;
+                subscriber = null;
+            }
+        }
+        if (subscriber != null) {
+            subscriber.onSubscribe(new Flow.Subscription() {
+                @Override
+                public void request(long n) {
+                }
+
+                @Override
+                public void cancel() {
+                }
+            });
+            subscriber.onError(new IllegalStateException("Error: CipherProcessor only takes one subscriber"));
+            return;
+        }
+        schedule();
+    }
+
+    @Override
+    public void onSubscribe(Flow.Subscription subscription) {
+        synchronized (this) {
+            if (upstream == null && !cancelled) {
+                upstream = subscription;
+                subscription = null;
+            }
+        }
+        if (subscription != null) {
+            subscription.cancel();
+            return;
+        }
+        schedule();
+    }
+
+    @Override
+    public void onNext(byte[] item) {
+        inbox.offer(item);
+        schedule();
+    }
+
+    @Override
+    public void onError(Throwable throwable) {
+        upstreamError = throwable;
+        upstreamDone = true;
+        schedule();
+    }
+
+    @Override
+    public void onComplete() {
+        upstreamDone = true;
+        schedule();
+    }
+
+    // What the subscriber gets to request more output with
+    private final Flow.Subscription subscription = new Flow.Subscription() {
+        @Override
+        public void request(long n) {
+            if (n <= 0) {
+                requestError = new IllegalArgumentException("Error: Demand must be positive");
+            } else {
+                demand.getAndAccumulate(n, (current, added) -> {
+                    long sum = current + added;
+                    return sum < 0 ? Long.MAX_VALUE : sum;
+                });
+            }
+            schedule();
+        }
+
+        @Override
+        public void cancel() {
+            cancelled = true;
+            schedule();
+        }
+    };
+
+    // Starts a drain on the executor unless one is already running, in which case
+    // that one goes around again and sees whatever changed
+    private void schedule() {
+        if (wip.getAndIncrement() == 0) {
+            try {
+                executor.execute(this::drain);
+            } catch (RejectedExecutionException e) {
+                // Nowhere to run, fail the stage from here (this thread owns the drain now)
+                upstreamError = e;
+                upstreamDone = true;
+                drain();
+            }
+        }
+    }
+
+    private void drain() {
+        int missed = 1;
+        do {
+            Flow.Subscriber<? super byte[]> subscriber = downstream;
+            if (subscriber != null && !terminated) {
+                if (!subscribed) {
+                    subscribed = true;
+                    subscriber.onSubscribe(subscription);
+                }
+                step(subscriber);
+            }
+            missed = wip.addAndGet(-missed);
+        } while (missed != 0);
+    }
+
+    private void step(Flow.Subscriber<? super byte[]> subscriber) {
+        if (cancelled) {
+            terminate();
+            return;
+        }
+        Throwable error = requestError != null ? requestError : upstreamError;
+        if (error != null) {
+            terminate();
+            subscriber.onError(error);
+            return;
+        }
+
+        byte[] item;
+        while ((item = inbox.poll()) != null) {
+            outstanding--;
+            append(item);
+        }
+
+        try {
+            while (demand.get() > 0 && !finished) {
+                byte[] chunk = nextChunk();
+                if (chunk == null) {
+                    break;
+                }
+                demand.decrementAndGet();
+                subscriber.onNext(chunk);
+                if (cancelled) {
+                    terminate();
+                    return;
+                }
+            }
+            if (!finished && upstreamDone && inbox.isEmpty() && mode == Mode.DECODE
+                    && pendingLength <= CustomCipherOutputStream.TRAILER_LENGTH) {
+                // Nothing but a trailer left (an empty message), which completes
+                // without any output so it doesn't wait on demand
+                nextDecoded();
+            }
+        } catch (IOException | IllegalArgumentException e) {
+            terminate();
+            subscriber.onError(e);
+            return;
+        }
+
+        if (finished) {
+            terminate();
+            subscriber.onComplete();
+            return;
+        }
+
+        // Only ask for more while the subscriber wants output and there isn't
+        // already a batch waiting here
+        Flow.Subscription source = upstream;
+        if (source != null && !upstreamDone && demand.get() > 0 && pendingLength < refillBelow
+                && outstanding < prefetch) {
+            long n = prefetch - outstanding;
+            outstanding = prefetch;
+            source.request(n);
+        }
+    }
+
+    // Stops for good: lets go of upstream and the buffered data
+    private void terminate() {
+        terminated = true;
+        Flow.Subscription source = upstream;
+        if (source != null && !upstreamDone) {
+            source.cancel();
+        }
+        inbox.clear();
+        pending = null;
+        pendingLength = 0;
+    }
+
+    private void append(byte[] item) {
+        int needed = pendingLength + item.length;
+        if (pending.length < needed) {
+            byte[] grown = new byte[Math.max(needed, pending.length * 2)];
+            System.arraycopy(pending, 0, grown, 0, pendingLength);
+            pending = grown;
+        }
+        if (mode == Mode.DECODE) {
+            System.arraycopy(item, 0, pending, pendingLength, item.length);
+            pendingLength += item.length;
+            return;
+        }
+        // Whitespace gets skipped just like CustomCipherOutputStream does it
+        for (byte value : item) {
+            if (!CustomCipher.isSkippable(value & 0xFF, alphabet)) {
+                pending[pendingLength++] = value;
+            }
+        }
+    }
+
+    // The next chunk to hand on, or null when there isn't enough buffered yet
+    private byte[] nextChunk() throws IOException {
+        return mode == Mode.ENCODE ? nextEncoded() : nextDecoded();
+    }
+
+    private byte[] nextEncoded() {
+        int wholeBlocks = pendingLength / blockSize * blockSize;
+        if (wholeBlocks > 0) {
+            int length = Math.min(wholeBlocks, batchSize);
+            byte[] chunk = new byte[length];
+            encode(length, chunk);
+            consume(length);
+            return chunk;
+        }
+        if (!upstreamDone || !inbox.isEmpty()) {
+            return null;
+        }
+
+        // Last block padded out, then the trailer
+        int padding = pendingLength == 0 ? 0 : blockSize - pendingLength;
+        int length = pendingLength == 0 ? 0 : blockSize;
+        byte[] chunk = new byte[length + CustomCipherOutputStream.TRAILER_LENGTH];
+        if (pendingLength > 0) {
+            encode(pendingLength, chunk);
+        }
+        chunk[length] = (byte) CustomCipherOutputStream.TRAILER_MARKER;
+        chunk[length + 1] = (byte) (padding >>> 24);
+        chunk[length + 2] = (byte) (padding >>> 16);
+        chunk[length + 3] = (byte) (padding >>> 8);
+        chunk[length + 4] = (byte) padding;
+        pendingLength = 0;
+        finished = true;
+        return chunk;
+    }
+
+    private byte[] nextDecoded() throws IOException {
+        int trailerLength = CustomCipherOutputStream.TRAILER_LENGTH;
+        if (!upstreamDone || !inbox.isEmpty()) {
+            // A block can only be the last one if the trailer is all that follows
+            // it, so anything with more than that behind it is safe to decode
+            if (pendingLength <= trailerLength) {
+                return null;
+            }
+            int length = Math.min((pendingLength - trailerLength - 1) / blockSize * blockSize, batchSize);
+            return length > 0 ? decode(length, length) : null;
+        }
+
+        int cipherLength = pendingLength - trailerLength;
+        if (cipherLength < 0 || cipherLength % blockSize != 0
+                || pending[cipherLength] != CustomCipherOutputStream.TRAILER_MARKER) {
+            throw new IOException("Error: Corrupt cipher trailer");
+        }
+        int padding = ((pending[cipherLength + 1] & 0xFF) << 24) | ((pending[cipherLength + 2] & 0xFF) << 16)
+                | ((pending[cipherLength + 3] & 0xFF) << 8) | (pending[cipherLength + 4] & 0xFF);
+        if (padding < 0 || padding >= blockSize || (cipherLength == 0 && padding != 0)) {
+            throw new IOException("Error: Corrupt cipher trailer");
+        }
+        if (cipherLength > blockSize) {
+            int length = Math.min(cipherLength - blockSize, batchSize);
+            return decode(length, length);
+        }
+        finished = true;
+        if (cipherLength == 0) {
+            return null;
+        }
+        return decode(blockSize, blockSize - padding);
+    }
+
+    // Encodes the first length buffered bytes as one message, the last block gets
+    // padded by encodeBatch
+    private void encode(int length, byte[] out) {
+        batchOffsets[0] = 0;
+        batchOffsets[1] = length;
+        cipher.encodeBatch(pending, batchOffsets, 1, blockKey, out, outOffsets);
+    }
+
+    // Decodes the first length buffered bytes (whole blocks) and keeps plainLength
+    // of what comes out
+    private byte[] decode(int length, int plainLength) {
+        byte[] chunk = new byte[plainLength];
+        batchOffsets[0] = 0;
+        batchOffsets[1] = length;
+        outOffsets[0] = 0;
+        outOffsets[1] = plainLength;
+        cipher.decodeBatch(pending, batchOffsets, 1, blockKey, chunk, outOffsets);
+        consume(length);
+        return chunk;
+    }
+
+    private void consume(int length) {
+        pendingLength -= length;
+        System.arraycopy(pending, length, pending, 0, pendingLength);
+    }
+}
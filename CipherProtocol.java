@@ -0,0 +1,134 @@
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.StandardProtocolFamily;
+import java.net.StandardSocketOptions;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/*
+ * The wire format CipherServer and CipherLoadClient talk, all ints big endian
+ *
+ * Request:   [frame length][opcode (1 byte)][request id][key length][key][payload]
+ * Response:  [frame length][status (1 byte)][request id][key length][key][payload]
+ * Error:     [frame length][STATUS_ERROR][request id][UTF-8 message]
+ *
+ * The frame length counts everything after itself. Keys are in the KeyCodec
+ * binary form. An encode request with no key gets one generated for it, which
+ * comes back in the response (otherwise the response key is empty). Requests can
+ * be pipelined, responses come back in the order the requests were sent and carry
+ * the request id they answer
+ */
+final class CipherProtocol {
+
+    static final byte OP_ENCODE = 1;
+    static final byte OP_DECODE = 2;
+
+    static final byte STATUS_OK = 0;
+    static final byte STATUS_ERROR = 1;
+
+    // Opcode/status plus request id plus key length
+    static final int HEADER_LENGTH = 9;
+
+    static final byte[] EMPTY = new byte[0];
+
+    // Anything bigger than this is treated as a broken connection
+    static final int MAX_FRAME_LENGTH = 64 << 20;
+
+    private CipherProtocol() {
+    }
+
+    /*
+     * Reads "host:port", a bare port (localhost) or "unix:/path/to/socket"
+     */
+    static SocketAddress parseAddress(String text) {
+        if (text.startsWith("unix:")) {
+            return UnixDomainSocketAddress.of(text.substring("unix:".length()));
+        }
+        int colon = text.lastIndexOf(':');
+        try {
+            if (colon == -1) {
+                return new InetSocketAddress("localhost", Integer.parseInt(text));
+            }
+            return new InetSocketAddress(text.substring(0, colon), Integer.parseInt(text.substring(colon + 1)));
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Error: Address must be host:port, a port or unix:/path");
+        }
+    }
+
+    static ServerSocketChannel bind(SocketAddress address, int backlog) throws IOException {
+        if (address instanceof UnixDomainSocketAddress) {
+            // A socket file left behind by a server that didn't shut down cleanly
+            // would make the bind fail
+            Files.deleteIfExists(((UnixDomainSocketAddress) address).getPath());
+            ServerSocketChannel server = ServerSocketChannel.open(StandardProtocolFamily.UNIX);
+            server.bind(address, backlog);
+            return server;
+        }
+        ServerSocketChannel server = ServerSocketChannel.open();
+        server.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+        server.bind(address, backlog);
+        return server;
+    }
+
+    static SocketChannel connect(SocketAddress address) throws IOException {
+        SocketChannel channel = address instanceof UnixDomainSocketAddress
+                ? SocketChannel.open(StandardProtocolFamily.UNIX)
+                : SocketChannel.open();
+        channel.connect(address);
+        configure(channel);
+        return channel;
+    }
+
+    // Small frames go out right away instead of waiting on Nagle
+    static void configure(SocketChannel channel) throws IOException {
+        if (!(channel.getLocalAddress() instanceof UnixDomainSocketAddress)) {
+            channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+        }
+    }
+
+    static void deleteSocketFile(SocketAddress address) throws IOException {
+        if (address instanceof UnixDomainSocketAddress) {
+            Path path = ((UnixDomainSocketAddress) address).getPath();
+            Files.deleteIfExists(path);
+        }
+    }
+
+    // Reads the frame length that starts every message, -1 at a clean end of stream
+    static int readFrameLength(DataInputStream in) throws IOException {
+        int first = in.read();
+        if (first == -1) {
+            return -1;
+        }
+        int length = (first << 24) | (in.readUnsignedByte() << 16) | (in.readUnsignedByte() << 8)
+                | in.readUnsignedByte();
+        if (length < HEADER_LENGTH - 4 || length > MAX_FRAME_LENGTH) {
+            throw new IOException("Error: Bad frame length " + length);
+        }
+        return length;
+    }
+
+    static void writeFrame(DataOutputStream out, byte type, int requestId, byte[] key, int keyOffset,
+            int keyLength, byte[] payload, int payloadOffset, int payloadLength) throws IOException {
+        out.writeInt(HEADER_LENGTH + keyLength + payloadLength);
+        out.writeByte(type);
+        out.writeInt(requestId);
+        out.writeInt(keyLength);
+        out.write(key, keyOffset, keyLength);
+        out.write(payload, payloadOffset, payloadLength);
+    }
+
+    static void writeError(DataOutputStream out, int requestId, String message) throws IOException {
+        byte[] bytes = String.valueOf(message).getBytes(StandardCharsets.UTF_8);
+        out.writeInt(5 + bytes.length);
+        out.writeByte(STATUS_ERROR);
+        out.writeInt(requestId);
+        out.write(bytes);
+    }
+}
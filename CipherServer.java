@@ -0,0 +1,299 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * Serves encode/decode requests over TCP or a Unix domain socket (see
+ * CipherProtocol for the format) so other processes don't have to drive Main
+ *
+ * Every connection gets its own thread that reads a request, answers it and goes
+ * on to the next one. That keeps the responses in order for pipelining clients,
+ * and the socket only gets flushed once the requests that already arrived have
+ * all been answered, so a burst of pipelined requests goes back in one write.
+ * Virtual threads are used when the JVM has them (21+), on older JVMs it falls
+ * back to a cached pool of platform threads.
+ *
+ * Backpressure comes from the structure: a connection thread doesn't read the next
+ * request until the last one is answered, so a client that sends faster than the
+ * server keeps up fills its socket buffer and blocks, and once maxConnections are
+ * open new ones wait in the accept backlog. All connections share one CustomCipher
+ * and one CipherKeyCache.
+ *
+ * close() shuts down gracefully: it stops accepting, lets every connection finish
+ * the request it's on and flush it, and only forces the sockets closed if that
+ * takes longer than the shutdown timeout
+ */
+public class CipherServer implements AutoCloseable {
+
+    public static final int DEFAULT_MAX_CONNECTIONS = 1024;
+    public static final int DEFAULT_KEY_CACHE_SIZE = 4096;
+    private static final long SHUTDOWN_TIMEOUT_MILLIS = 5000;
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    private final CustomCipher cipher = new CustomCipher();
+    private final CipherKeyCache keyCache;
+    private final ServerSocketChannel server;
+    private final SocketAddress address;
+    private final Semaphore connectionPermits;
+    private final ExecutorService connections;
+    private final Set<SocketChannel> openChannels = ConcurrentHashMap.newKeySet();
+    private final Thread acceptor;
+    private volatile boolean running = true;
+
+    public CipherServer(SocketAddress address) throws IOException {
+        this(address, DEFAULT_MAX_CONNECTIONS, new CipherKeyCache(DEFAULT_KEY_CACHE_SIZE));
+    }
+
+    public CipherServer(SocketAddress address, int maxConnections, CipherKeyCache keyCache) throws IOException {
+        if (maxConnections <= 0) {
+            throw new IllegalArgumentException("Error: Max connections must be positive");
+        }
+        this.keyCache = keyCache;
+        this.server = CipherProtocol.bind(address, maxConnections);
+        this.address = server.getLocalAddress();
+        this.connectionPermits = new Semaphore(maxConnections);
+        this.connections = newConnectionExecutor();
+        this.acceptor = new Thread(this::acceptLoop, "cipher-server-acceptor");
+        this.acceptor.start();
+    }
+
+    // The address actually bound, handy when the port asked for was 0
+    public SocketAddress getLocalAddress() {
+        return address;
+    }
+
+    public CipherKeyCache getKeyCache() {
+        return keyCache;
+    }
+
+    @Override
+    public void close() throws IOException {
+        shutdown(SHUTDOWN_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    /*
+     * Stops taking connections, closes every connection's input so it finishes the
+     * request in progress and flushes, then waits up to the timeout before closing
+     * whatever is left. Returns true if everything finished on its own
+     */
+    public boolean shutdown(long timeout, TimeUnit unit) throws IOException {
+        if (!running) {
+            return true;
+        }
+        running = false;
+        acceptor.interrupt();
+        server.close();
+        for (SocketChannel channel : openChannels) {
+            try {
+                channel.shutdownInput();
+            } catch (IOException e) {
+                // Already gone
+            }
+        }
+        connections.shutdown();
+        boolean clean;
+        try {
+            acceptor.join(unit.toMillis(timeout));
+            clean = connections.awaitTermination(timeout, unit);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            clean = false;
+        }
+        if (!clean) {
+            for (SocketChannel channel : openChannels) {
+                channel.close();
+            }
+            connections.shutdownNow();
+        }
+        CipherProtocol.deleteSocketFile(address);
+        return clean;
+    }
+
+    private void acceptLoop() {
+        while (running) {
+            try {
+                connectionPermits.acquire();
+            } catch (InterruptedException e) {
+                return;
+            }
+            SocketChannel channel;
+            try {
+                channel = server.accept();
+            } catch (IOException e) {
+                connectionPermits.release();
+                if (e instanceof ClosedChannelException || !running) {
+                    return;
+                }
+                continue;
+            }
+            openChannels.add(channel);
+            try {
+                connections.execute(() -> serve(channel));
+            } catch (RejectedExecutionException e) {
+                // Shutting down, this one came in too late
+                openChannels.remove(channel);
+                connectionPermits.release();
+                try {
+                    channel.close();
+                } catch (IOException ignored) {
+                    // Nothing more to do with it
+                }
+            }
+        }
+    }
+
+    private void serve(SocketChannel channel) {
+        try (channel) {
+            CipherProtocol.configure(channel);
+            DataInputStream in = new DataInputStream(
+                    new BufferedInputStream(Channels.newInputStream(channel), BUFFER_SIZE));
+            DataOutputStream out = new DataOutputStream(
+                    new BufferedOutputStream(Channels.newOutputStream(channel), BUFFER_SIZE));
+            Connection connection = new Connection();
+            int length;
+            while ((length = CipherProtocol.readFrameLength(in)) != -1) {
+                byte[] frame = connection.frame(length);
+                in.readFully(frame, 0, length);
+                handle(frame, length, connection, out);
+                // Requests that are already here get answered before anything is
+                // sent, a pipelined burst goes back in one write
+                if (in.available() == 0) {
+                    out.flush();
+                }
+            }
+            out.flush();
+        } catch (EOFException e) {
+            // Client went away halfway through a frame
+        } catch (IOException e) {
+            // Connection dropped or the server forced it closed, nothing to answer
+        } finally {
+            openChannels.remove(channel);
+            connectionPermits.release();
+        }
+    }
+
+    private void handle(byte[] frame, int length, Connection connection, DataOutputStream out) throws IOException {
+        if (length < CipherProtocol.HEADER_LENGTH) {
+            throw new IOException("Error: Request frame is too short");
+        }
+        ByteBuffer request = ByteBuffer.wrap(frame, 0, length);
+        byte opcode = request.get();
+        int requestId = request.getInt();
+        int keyLength = request.getInt();
+        int keyOffset = request.position();
+        if (keyLength < 0 || keyLength > length - keyOffset) {
+            CipherProtocol.writeError(out, requestId, "Error: Key length runs past the end of the frame");
+            return;
+        }
+        int payloadOffset = keyOffset + keyLength;
+        int payloadLength = length - payloadOffset;
+
+        try {
+            if (opcode == CipherProtocol.OP_ENCODE) {
+                byte[] generatedKey = CipherProtocol.EMPTY;
+                CipherKey key;
+                if (keyLength == 0) {
+                    key = new CipherKey(payloadLength);
+                    generatedKey = KeyCodec.toBytes(key);
+                } else {
+                    key = keyCache.get(checkKey(frame, keyOffset, keyLength));
+                }
+                byte[] result = connection.result(CustomCipher.encodedLength(payloadLength, key));
+                int n = cipher.encode(frame, payloadOffset, payloadLength, key, result, 0,
+                        connection.work(key, result.length));
+                CipherProtocol.writeFrame(out, CipherProtocol.STATUS_OK, requestId, generatedKey, 0,
+                        generatedKey.length, result, 0, n);
+            } else if (opcode == CipherProtocol.OP_DECODE) {
+                CipherKey key = keyCache.get(checkKey(frame, keyOffset, keyLength));
+                byte[] result = connection.result(payloadLength);
+                int n = cipher.decode(frame, payloadOffset, payloadLength, key, result, 0,
+                        connection.work(key, payloadLength));
+                CipherProtocol.writeFrame(out, CipherProtocol.STATUS_OK, requestId, CipherProtocol.EMPTY, 0, 0,
+                        result, 0, n);
+            } else {
+                CipherProtocol.writeError(out, requestId, "Error: Unknown opcode " + opcode);
+            }
+        } catch (IllegalArgumentException e) {
+            // Bad input or a bad key only fails this request, the connection carries on
+            CipherProtocol.writeError(out, requestId, e.getMessage());
+        } catch (RuntimeException e) {
+            // Anything else is a bug, but it's still only this request's, the client
+            // gets an answer and the connection thread doesn't die with it
+            CipherProtocol.writeError(out, requestId, "Error: Request failed (" + e + ")");
+        }
+    }
+
+    // The key's header says how big the key is, a key that claims more than the
+    // frame actually carries is turned away before it gets parsed
+    private static ByteBuffer checkKey(byte[] frame, int keyOffset, int keyLength) {
+        ByteBuffer key = ByteBuffer.wrap(frame, keyOffset, keyLength);
+        if (KeyCodec.peekEncodedSize(key) > keyLength) {
+            throw new IllegalArgumentException("Error: Key is bigger than the frame it came in");
+        }
+        return key;
+    }
+
+    /*
+     * Virtual threads if this JVM has them. Looked up by reflection so the library
+     * still builds for Java 17
+     */
+    private static ExecutorService newConnectionExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return Executors.newCachedThreadPool(task -> {
+                Thread thread = new Thread(task, "cipher-server-connection");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+    }
+
+    // Buffers one connection reuses from request to request
+    private static final class Connection {
+        private byte[] frame = new byte[BUFFER_SIZE];
+        private byte[] result = new byte[BUFFER_SIZE];
+        private int[] work = new int[CipherKey.MAX_MATRIX_SIZE];
+
+        byte[] frame(int length) {
+            if (frame.length < length) {
+                frame = new byte[length];
+            }
+            return frame;
+        }
+
+        byte[] result(int length) {
+            if (result.length < length) {
+                result = new byte[length];
+            }
+            return result;
+        }
+
+        // The fused kernels only use the work buffer for one block, it only has to
+        // be as long as the message for predefined keys that aren't a permutation
+        int[] work(CipherKey key, int length) {
+            CompiledKey compiledKey = key.getCompiledKey();
+            int needed = compiledKey.inverseTransposition != null ? compiledKey.matrixSize : length;
+            if (work.length < needed) {
+                work = new int[needed];
+            }
+            return work;
+        }
+    }
+}
@@ -0,0 +1,174 @@
+import java.util.Arrays;
+
+/*
+ * The "compiled" form of a CipherKey
+ *
+ * Everything the cipher needs is worked out once up front: flat substitution
+ * tables in both directions, the inverse of the key matrix modulo the alphabet
+ * size and the transposition permutation in both directions. Nothing in here changes after construction so a
+ * single instance can be shared by any number of threads, and CustomCipher reads
+ * the arrays directly instead of asking CipherKey for copies on every call.
+ *
+ * The arrays are package-private for the engine and must never be written to
+ */
+public final class CompiledKey {
+
+    // The alphabet's lookup tables, from a character to its digit value (0 when
+    // it's not in the alphabet) and from a digit value back to its symbol
+    final Alphabet alphabet;
+    final int modulus;
+    final int[] valueTable;
+    final char[] symbolTable;
+
+    // 2^40 / modulus rounded up, lets the kernels reduce with a multiply and a
+    // shift (see CustomCipher.reduce)
+    final long reciprocal;
+
+    // Indexed by digit value (1 to modulus), index 0 is unused. The forward table
+    // and the matrix are normalized to 1..modulus, which leaves every result the
+    // same modulo the alphabet size but keeps the kernel sums non-negative
+    final int[] substitutionTable;
+    final int[] inverseSubstitutionTable;
+
+    // Row major n x n matrix (n = matrixSize) and its inverse modulo the alphabet
+    // size, the inverse is null when the determinant shares a factor with it
+    final int matrixSize;
+    final int[] matrix;
+    final int[] inverseMatrix;
+
+    // transposition[i] is the product position that lands at cipher position i,
+    // inverseTransposition[p] is the cipher position product position p lands at
+    // (null when a predefined key doesn't hold a real permutation)
+    final int[] transposition;
+    final int[] inverseTransposition;
+
+    // The transposition's cycles cut into runs of at most SEGMENT_LENGTH positions
+    // for permuting a buffer in place: where each run starts, how many positions it
+    // covers and which run comes after it in its cycle (all empty when there's no
+    // inverse either). Runs are independent once their first letters are saved, so
+    // several can be walked at once instead of one long dependent chain
+    static final int SEGMENT_LENGTH = 1024;
+    final int[] segmentStarts;
+    final int[] segmentLengths;
+    final int[] segmentNext;
+
+    CompiledKey(int[] masterKey, int matrixSize, Alphabet alphabet) {
+        this.alphabet = alphabet;
+        this.modulus = alphabet.size();
+        this.valueTable = alphabet.valueTable();
+        this.symbolTable = alphabet.symbolTable();
+        this.reciprocal = (1L << 40) / modulus + 1;
+
+        substitutionTable = new int[modulus + 1];
+        inverseSubstitutionTable = new int[modulus + 1];
+
+        // Values that nothing maps to decode to themselves, same as the old
+        // getOrDefault lookup did
+        for (int i = 1; i <= modulus; i++) {
+            inverseSubstitutionTable[i] = i;
+        }
+        for (int i = 1; i <= modulus; i++) {
+            int value = masterKey[i - 1];
+            if (value >= 1 && value <= modulus) {
+                inverseSubstitutionTable[value] = i;
+            }
+            substitutionTable[i] = normalize(value, modulus);
+        }
+
+        this.matrixSize = matrixSize;
+        matrix = new int[matrixSize * matrixSize];
+        for (int i = 0; i < matrix.length; i++) {
+            matrix[i] = normalize(masterKey[modulus + i], modulus);
+        }
+        inverseMatrix = ModularMatrix.invert(matrix, matrixSize, modulus);
+
+        int transpositionStart = modulus + matrix.length;
+        transposition = new int[masterKey.length - transpositionStart];
+        for (int i = 0; i < transposition.length; i++) {
+            transposition[i] = masterKey[transpositionStart + i];
+        }
+        inverseTransposition = invertPermutation(transposition);
+        int[][] segments = inverseTransposition != null ? findSegments(transposition) : new int[3][0];
+        segmentStarts = segments[0];
+        segmentLengths = segments[1];
+        segmentNext = segments[2];
+    }
+
+    // Number of characters (after padding) this key can encode
+    public int getMessageLength() {
+        return transposition.length;
+    }
+
+    public int getMatrixSize() {
+        return matrixSize;
+    }
+
+    public Alphabet getAlphabet() {
+        return alphabet;
+    }
+
+    public boolean isInvertible() {
+        return inverseMatrix != null;
+    }
+
+    // Same representative the cipher uses everywhere, 0 becomes modulus
+    private static int normalize(int value, int modulus) {
+        int result = Math.floorMod(value, modulus);
+        return result == 0 ? modulus : result;
+    }
+
+    // A random permutation only has around ln(n) cycles, so this comes to about
+    // n / SEGMENT_LENGTH runs
+    private static int[][] findSegments(int[] permutation) {
+        boolean[] seen = new boolean[permutation.length];
+        int capacity = permutation.length / SEGMENT_LENGTH + 16;
+        int[] starts = new int[capacity];
+        int[] lengths = new int[capacity];
+        int[] next = new int[capacity];
+        int count = 0;
+        for (int leader = 0; leader < permutation.length; leader++) {
+            if (seen[leader]) {
+                continue;
+            }
+            int first = count;
+            int position = leader;
+            while (!seen[position]) {
+                if (count == starts.length) {
+                    starts = Arrays.copyOf(starts, count * 2);
+                    lengths = Arrays.copyOf(lengths, count * 2);
+                    next = Arrays.copyOf(next, count * 2);
+                }
+                starts[count] = position;
+                int length = 0;
+                while (length < SEGMENT_LENGTH && !seen[position]) {
+                    seen[position] = true;
+                    position = permutation[position];
+                    length++;
+                }
+                lengths[count] = length;
+                next[count] = count + 1;
+                count++;
+            }
+            // The last run of a cycle leads back round to its first
+            next[count - 1] = first;
+        }
+        return new int[][] {Arrays.copyOf(starts, count), Arrays.copyOf(lengths, count),
+                Arrays.copyOf(next, count)};
+    }
+
+    // A predefined key isn't guaranteed to hold a real permutation, so there is
+    // no inverse when an entry is out of range or repeated
+    private static int[] invertPermutation(int[] permutation) {
+        int[] inverse = new int[permutation.length];
+        boolean[] seen = new boolean[permutation.length];
+        for (int i = 0; i < permutation.length; i++) {
+            int position = permutation[i];
+            if (position < 0 || position >= permutation.length || seen[position]) {
+                return null;
+            }
+            seen[position] = true;
+            inverse[position] = i;
+        }
+        return inverse;
+    }
+}
@@ -1,301 +1,1264 @@
-import java.util.*;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
 
+/*
+ * The cipher itself. It holds no state of its own (everything comes from the
+ * CipherKey passed in) so one instance can be shared by any number of threads
+ */
 public class CustomCipher {
 
-    private static final Map<Character, Integer> charToNum = new HashMap<>();
+    private static final String INCORRECT_INPUT = "Error: Incorrect input detected";
 
-    static {
-        // Initialize character mappings (A=1, B=2, ..., Z=26)
-        for (int i = 0; i < 26; i++) {
-            charToNum.put((char) ('A' + i), i + 1);
-        }
-    }
+    // Letter used to fill out the last block when a message gets cut into blocks,
+    // the streams and batch decoding strip it back off. Every alphabet has it
+    static final byte PADDING_LETTER = 'X';
+
+    // How many cycle runs the in place transposition walks side by side
+    private static final int WALKERS = 8;
 
     /*
      * Encoding methods
      */
     public void encode(String plaintext, CipherKey encodeKey) {
-        // Call Substitute Method
-        String substitutionString = substitute(plaintext, encodeKey.getSubstitutionKey());
-        //System.out.println("Substitution Result: " + substitutionString);
+        String finalCipher;
+        try {
+            finalCipher = encodeToString(plaintext, encodeKey);
+        } catch (IllegalArgumentException e) {
+            System.out.println(e.getMessage());
+            return;
+        }
+        System.out.println("Resulting Cipher: " + finalCipher);
+        System.out.println("-----------------------------------------------------------------------------------");
+    }
 
-        // Call Product Method
-        int[] productArray = makeProduct(substitutionString, encodeKey.getMatrixKey());
-        //System.out.println("Product Result: " + Arrays.toString(productArray));
+    // Same as encode but hands the cipher back instead of printing it
+    public String encodeToString(String plaintext, CipherKey encodeKey) {
+        char[] plaintextChars = toCapitalChar(plaintext, encodeKey.getAlphabet());
+        char[] cipherChars = new char[encodedLength(plaintextChars.length, encodeKey)];
+        encode(plaintextChars, 0, plaintextChars.length, encodeKey, cipherChars, 0);
+        return new String(cipherChars);
+    }
 
-        // Call Transposition Method
-        int[] transposeArray = transpose(productArray, encodeKey.getTranspositionKey());
-        //System.out.println("Transposition Result: " + Arrays.toString(transposeArray));
+    /*
+     * Buffer based encoding
+     *
+     * These read letters from the input, write the cipher letters to the output
+     * and return how many were written (the message length padded to the matrix
+     * size). The work buffer is scratch space of at least encodedLength(length, key) so
+     * callers that encode in a loop can reuse one and keep the hot path free of
+     * allocations.
+     *
+     * Keys holding a real transposition permutation (every generated key) go through
+     * the fused kernel below, which only needs the first matrix size values of work.
+     * If the input turns out to hold something other than a letter the output is
+     * left partly written
+     */
+    public int encode(char[] plaintext, int offset, int length, CipherKey encodeKey,
+            char[] out, int outOffset, int[] work) {
+        long startTime = CipherMetrics.start();
+        CompiledKey compiledKey = encodeKey.getCompiledKey();
+        int n = checkEncodeLength(length, compiledKey);
+        if (compiledKey.inverseTransposition != null) {
+            encodeBlocks(plaintext, offset, length, compiledKey, 0, 0, n, out, outOffset, work);
+            CipherMetrics.record(CipherMetrics.Operation.ENCODE, n, startTime);
+            return n;
+        }
+        int[] valueTable = compiledKey.valueTable;
+        for (int i = 0; i < length; i++) {
+            work[i] = toDigitValue(plaintext[offset + i], valueTable);
+        }
+        encodeValues(work, length, compiledKey);
+        int[] transpositionKey = compiledKey.transposition;
+        char[] symbolTable = compiledKey.symbolTable;
+        for (int i = 0; i < n; i++) {
+            out[outOffset + i] = symbolTable[work[transpositionKey[i]]];
+        }
+        CipherMetrics.record(CipherMetrics.Operation.ENCODE, n, startTime);
+        return n;
+    }
 
-        String finalCipher = mapToLetters(transposeArray);
-        System.out.println("Resulting Cipher: " + finalCipher);
-        System.out.println("-----------------------------------------------------------------------------------");
+    public int encode(char[] plaintext, int offset, int length, CipherKey encodeKey, char[] out, int outOffset) {
+        return encode(plaintext, offset, length, encodeKey, out, outOffset,
+                newWork(encodedLength(length, encodeKey), encodeKey.getCompiledKey()));
+    }
+
+    public int encode(byte[] plaintext, int offset, int length, CipherKey encodeKey,
+            byte[] out, int outOffset, int[] work) {
+        long startTime = CipherMetrics.start();
+        CompiledKey compiledKey = encodeKey.getCompiledKey();
+        int n = checkEncodeLength(length, compiledKey);
+        if (compiledKey.inverseTransposition != null) {
+            encodeBlocks(plaintext, offset, length, compiledKey, 0, 0, n, out, outOffset, work);
+            CipherMetrics.record(CipherMetrics.Operation.ENCODE, n, startTime);
+            return n;
+        }
+        int[] valueTable = compiledKey.valueTable;
+        for (int i = 0; i < length; i++) {
+            work[i] = toDigitValue(plaintext[offset + i] & 0xFF, valueTable);
+        }
+        encodeValues(work, length, compiledKey);
+        int[] transpositionKey = compiledKey.transposition;
+        char[] symbolTable = compiledKey.symbolTable;
+        for (int i = 0; i < n; i++) {
+            out[outOffset + i] = (byte) symbolTable[work[transpositionKey[i]]];
+        }
+        CipherMetrics.record(CipherMetrics.Operation.ENCODE, n, startTime);
+        return n;
+    }
+
+    public int encode(byte[] plaintext, int offset, int length, CipherKey encodeKey, byte[] out, int outOffset) {
+        return encode(plaintext, offset, length, encodeKey, out, outOffset,
+                newWork(encodedLength(length, encodeKey), encodeKey.getCompiledKey()));
+    }
+
+    /*
+     * Same again straight on ByteBuffers, heap or direct, so data that already sits
+     * off the heap never has to be copied onto it. The plaintext is read from its
+     * position to its limit and the cipher written at out's position, and both
+     * positions are moved past what was used. out has to have the padded length
+     * remaining. Input and output must not overlap, for that there's encodeInPlace
+     */
+    public int encode(ByteBuffer plaintext, CipherKey encodeKey, ByteBuffer out, int[] work) {
+        long startTime = CipherMetrics.start();
+        CompiledKey compiledKey = encodeKey.getCompiledKey();
+        int offset = plaintext.position();
+        int length = plaintext.remaining();
+        int n = checkEncodeLength(length, compiledKey);
+        checkRemaining(out, n);
+        int outOffset = out.position();
+        if (compiledKey.inverseTransposition != null) {
+            encodeBlocks(plaintext, offset, length, compiledKey, 0, 0, n, out, outOffset, work);
+        } else {
+            int[] valueTable = compiledKey.valueTable;
+            for (int i = 0; i < length; i++) {
+                work[i] = toDigitValue(plaintext.get(offset + i) & 0xFF, valueTable);
+            }
+            encodeValues(work, length, compiledKey);
+            int[] transpositionKey = compiledKey.transposition;
+            char[] symbolTable = compiledKey.symbolTable;
+            for (int i = 0; i < n; i++) {
+                out.put(outOffset + i, (byte) symbolTable[work[transpositionKey[i]]]);
+            }
+        }
+        plaintext.position(offset + length);
+        out.position(outOffset + n);
+        CipherMetrics.record(CipherMetrics.Operation.ENCODE, n, startTime);
+        return n;
+    }
+
+    public int encode(ByteBuffer plaintext, CipherKey encodeKey, ByteBuffer out) {
+        return encode(plaintext, encodeKey, out,
+                newWork(encodedLength(plaintext.remaining(), encodeKey), encodeKey.getCompiledKey()));
+    }
+
+    /*
+     * In place encoding
+     *
+     * The message in [position, limit) is overwritten with its cipher, which runs
+     * on into the padding so there has to be room for encodedLength past the
+     * position. Afterwards the limit sits at the end of the cipher and the position
+     * hasn't moved, ready for reading it back out. No second buffer is needed: the
+     * substitution and matrix pass write every block back where it was read from,
+     * then the transposition is applied by walking the permutation's cycles, which
+     * moves every letter once with only one letter per cycle run held aside. It's
+     * slower than encoding into a separate buffer since the walk jumps around
+     * memory, but it needs no more than the buffer the message is already in
+     */
+    public int encodeInPlace(ByteBuffer buffer, CipherKey encodeKey) {
+        long startTime = CipherMetrics.start();
+        CompiledKey compiledKey = encodeKey.getCompiledKey();
+        int offset = buffer.position();
+        int length = buffer.remaining();
+        int n = checkEncodeLength(length, compiledKey);
+        if (buffer.capacity() - offset < n) {
+            throw CipherMetrics.error(CipherMetrics.ErrorType.LENGTH_MISMATCH,
+                    "Error: Buffer is too small for the padded cipher");
+        }
+        buffer.limit(offset + n);
+        if (compiledKey.inverseTransposition != null) {
+            productBlocksInPlace(buffer, offset, length, compiledKey, n, new int[compiledKey.matrixSize]);
+            permuteInPlace(buffer, offset, compiledKey, false);
+        } else {
+            // A predefined key that isn't a permutation has no cycles to walk, that
+            // goes through a full size work buffer instead
+            int[] work = new int[n];
+            int[] valueTable = compiledKey.valueTable;
+            for (int i = 0; i < length; i++) {
+                work[i] = toDigitValue(buffer.get(offset + i) & 0xFF, valueTable);
+            }
+            encodeValues(work, length, compiledKey);
+            int[] transpositionKey = compiledKey.transposition;
+            char[] symbolTable = compiledKey.symbolTable;
+            for (int i = 0; i < n; i++) {
+                buffer.put(offset + i, (byte) symbolTable[work[transpositionKey[i]]]);
+            }
+        }
+        CipherMetrics.record(CipherMetrics.Operation.ENCODE, n, startTime);
+        return n;
     }
 
-    private String substitute(String plaintext, Map<Integer, Integer> substitutionKey) {
+    // Same for the message in [offset, offset + length) of an array, which needs
+    // room for the padding after it
+    public int encodeInPlace(byte[] buffer, int offset, int length, CipherKey encodeKey) {
+        return encodeInPlace(ByteBuffer.wrap(buffer, offset, length), encodeKey);
+    }
 
-        // Send the plaintext to be formatted and turned into an array of chars
-        char[] plaintextChars = toCapitalChar(plaintext);
-        if (plaintextChars == null) {
-            return null;
+    private static void checkRemaining(ByteBuffer out, int length) {
+        if (out.remaining() < length) {
+            throw CipherMetrics.error(CipherMetrics.ErrorType.LENGTH_MISMATCH,
+                    "Error: Output buffer is too small for the cipher");
         }
+    }
 
-        // Turn the plaintext to their digit values for the substitution part
-        int[] digitValues = toDigitValue(plaintextChars);
+    // The fused kernels only use the work buffer for one block, so the overloads
+    // that allocate it only need that much
+    private static int[] newWork(int length, CompiledKey compiledKey) {
+        return new int[compiledKey.inverseTransposition != null ? compiledKey.matrixSize : length];
+    }
 
-        // Maps the digit key to its substitution value and adds it to the string
-        StringBuilder substitutionCipherString = new StringBuilder();
-        for (int i = 0; i < plaintextChars.length; i++) {
-            substitutionCipherString.append(substitutionKey.get(digitValues[i])).append(",");
+    // Works straight on digit values (A=1, ..., Z=26 for letters, 1 to the alphabet
+    // size in general) for callers that keep their messages in that form already
+    public int encode(int[] digitValues, int offset, int length, CipherKey encodeKey,
+            int[] out, int outOffset, int[] work) {
+        long startTime = CipherMetrics.start();
+        int modulus = encodeKey.getCompiledKey().modulus;
+        for (int i = 0; i < length; i++) {
+            int value = digitValues[offset + i];
+            if (value < 1 || value > modulus) {
+                throw CipherMetrics.error(CipherMetrics.ErrorType.INCORRECT_INPUT, INCORRECT_INPUT);
+            }
+            work[i] = value;
         }
+        CompiledKey compiledKey = encodeKey.getCompiledKey();
+        int n = encodeValues(work, length, compiledKey);
+        transpose(work, compiledKey.transposition, 0, n, out, outOffset);
+        CipherMetrics.record(CipherMetrics.Operation.ENCODE, n, startTime);
+        return n;
+    }
 
-        // To remove the trailing "," char and makes parsing later on easier
-        substitutionCipherString.setLength(substitutionCipherString.length() - 1);
+    // The message gets padded up to a full 2x1 block so this is the size of the cipher
+    public static int encodedLength(int plaintextLength) {
+        return encodedLength(plaintextLength, 2);
+    }
 
-        return substitutionCipherString.toString();
+    // Same for any key, the padding goes up to a full block of the key's matrix size
+    public static int encodedLength(int plaintextLength, CipherKey encodeKey) {
+        return encodedLength(plaintextLength, encodeKey.getMatrixSize());
+    }
+
+    static int encodedLength(int plaintextLength, int matrixSize) {
+        int remainder = plaintextLength % matrixSize;
+        return remainder == 0 ? plaintextLength : plaintextLength + matrixSize - remainder;
     }
 
     /*
-     * Cleans up the string input into just an array of chars
-     * that have no numbers, whitespaces, etc. Also capitalizes everything
+     * Batch encoding
+     *
+     * Encodes count messages packed back to back in plaintext, message i being
+     * [offsets[i], offsets[i + 1]), and writes their cipher one after the other into
+     * out with message i landing at [outOffsets[i], outOffsets[i + 1]). The key is
+     * only looked at once for the whole batch.
+     *
+     * Messages of any length share the one key by being cut into blocks the size of
+     * its transposition key (same as the streams), the last block of each message
+     * is padded with X. A message that fills whole blocks encodes exactly like
+     * encode() would encode each block
      */
-    private char[] toCapitalChar(String input) {
+    public int encodeBatch(byte[] plaintext, int[] offsets, int count, CipherKey encodeKey,
+            byte[] out, int[] outOffsets) {
+        long startTime = CipherMetrics.start();
+        CompiledKey compiledKey = encodeKey.getCompiledKey();
+        int blockSize = checkBlockKey(compiledKey);
+        int[] substitutionTable = compiledKey.substitutionTable;
+        int[] matrix = compiledKey.matrix;
+        int matrixSize = compiledKey.matrixSize;
+        int[] transpositionKey = compiledKey.transposition;
+        boolean fused = compiledKey.inverseTransposition != null;
+        int[] valueTable = compiledKey.valueTable;
+        char[] symbolTable = compiledKey.symbolTable;
+        int paddingValue = valueTable[PADDING_LETTER];
+        int padding = substitutionTable[paddingValue];
+        int[] work = new int[fused ? matrixSize : blockSize];
 
-        // To remove any spaces in case multiple words are used
-        input = input.replaceAll("\\s", "");
+        int position = 0;
+        for (int m = 0; m < count; m++) {
+            outOffsets[m] = position;
+            int end = offsets[m + 1];
+            for (int start = offsets[m]; start < end; start += blockSize) {
+                int length = Math.min(blockSize, end - start);
+                if (fused) {
+                    encodeBlocks(plaintext, start, length, compiledKey, padding, 0, blockSize, out, position, work);
+                    position += blockSize;
+                    continue;
+                }
+                for (int i = 0; i < length; i++) {
+                    work[i] = toDigitValue(plaintext[start + i] & 0xFF, valueTable);
+                }
+                for (int i = length; i < blockSize; i++) {
+                    work[i] = paddingValue;
+                }
+                substitute(work, 0, blockSize, substitutionTable);
+                makeProduct(work, 0, blockSize, matrix, matrixSize, compiledKey.modulus);
+                for (int i = 0; i < blockSize; i++) {
+                    out[position + i] = (byte) symbolTable[work[transpositionKey[i]]];
+                }
+                position += blockSize;
+            }
+        }
+        outOffsets[count] = position;
+        CipherMetrics.record(CipherMetrics.Operation.ENCODE_BATCH, position, startTime);
+        return position;
+    }
 
-        // Makes sure we don't perform our cipher on characters other than letters
-        if (input.matches(".*\\d.*") || input.length() == 0) {
-            System.out.println("Error: Incorrect input detected");
-            return null;
+    // How big out has to be for encodeBatch
+    public static int batchEncodedLength(int[] offsets, int count, CipherKey encodeKey) {
+        int blockSize = checkBlockKey(encodeKey.getCompiledKey());
+        int total = 0;
+        for (int m = 0; m < count; m++) {
+            int length = offsets[m + 1] - offsets[m];
+            total += (length + blockSize - 1) / blockSize * blockSize;
         }
+        return total;
+    }
 
-        return input.toUpperCase().toCharArray();
+    // A key used to encode in blocks needs a transposition key that holds whole
+    // matrix blocks, the block size is returned
+    static int checkBlockKey(CompiledKey compiledKey) {
+        int blockSize = compiledKey.getMessageLength();
+        if (blockSize == 0 || blockSize % compiledKey.matrixSize != 0) {
+            throw CipherMetrics.error(CipherMetrics.ErrorType.INVALID_KEY,
+                    "Error: Block key's transposition key must be a non-zero multiple of the matrix size");
+        }
+        return blockSize;
     }
 
     /*
-     * Converts alphabet characters a-z to their positional value [a=1, b=2, ...
-     * z=26]
-     * by using a predefined hash-map key-value pair
-     * Key being the char and value being it's digit
+     * The fused encode kernel
+     *
+     * Encodes the blocks in [from, to) of a message of length letters (from and to on
+     * a block boundary) in a single pass: each block is read once, run through the
+     * substitution table and the matrix, and every resulting letter is written
+     * straight to the cipher position the transposition sends it to. Positions past
+     * the end of the message take the padding value, which is already substituted
+     * (0 like encodeValues, or the padding letter's substitution for block modes).
+     * Since the transposition is a permutation no two blocks write to the same
+     * place, so disjoint ranges can run on different threads. block is scratch for
+     * one matrix block
      */
-    private int[] toDigitValue(char[] plaintextChars) {
+    static void encodeBlocks(byte[] plaintext, int offset, int length, CompiledKey compiledKey, int padding,
+            int from, int to, byte[] out, int outOffset, int[] block) {
+        int[] valueTable = compiledKey.valueTable;
+        char[] symbolTable = compiledKey.symbolTable;
+        int[] substitutionTable = compiledKey.substitutionTable;
+        int[] matrix = compiledKey.matrix;
+        int matrixSize = compiledKey.matrixSize;
+        int modulus = compiledKey.modulus;
+        long reciprocal = compiledKey.reciprocal;
+        int[] target = compiledKey.inverseTransposition;
 
-        int[] plaintextDigitValues = new int[plaintextChars.length];
-        for (int i = 0; i < plaintextChars.length; i++) {
-            plaintextDigitValues[i] = charToNum.get(plaintextChars[i]);
+        if (matrixSize == 2) {
+            int a = matrix[0];
+            int b = matrix[1];
+            int c = matrix[2];
+            int d = matrix[3];
+            for (int i = from; i < to; i += 2) {
+                int x;
+                int y;
+                if (i + 1 < length) {
+                    x = substitutionTable[toDigitValue(plaintext[offset + i] & 0xFF, valueTable)];
+                    y = substitutionTable[toDigitValue(plaintext[offset + i + 1] & 0xFF, valueTable)];
+                } else {
+                    x = i < length
+                            ? substitutionTable[toDigitValue(plaintext[offset + i] & 0xFF, valueTable)]
+                            : padding;
+                    y = padding;
+                }
+                out[outOffset + target[i]] = (byte) symbolTable[reduce(a * x + b * y, modulus, reciprocal)];
+                out[outOffset + target[i + 1]] = (byte) symbolTable[reduce(c * x + d * y, modulus, reciprocal)];
+            }
+            return;
         }
 
-        return plaintextDigitValues;
+        for (int i = from; i < to; i += matrixSize) {
+            for (int k = 0; k < matrixSize; k++) {
+                block[k] = i + k < length
+                        ? substitutionTable[toDigitValue(plaintext[offset + i + k] & 0xFF, valueTable)]
+                        : padding;
+            }
+            for (int row = 0; row < matrixSize; row++) {
+                int rowStart = row * matrixSize;
+                int sum = 0;
+                for (int k = 0; k < matrixSize; k++) {
+                    sum += matrix[rowStart + k] * block[k];
+                }
+                out[outOffset + target[i + row]] = (byte) symbolTable[reduce(sum, modulus, reciprocal)];
+            }
+        }
     }
 
-    private int[] convertStringToIntArray(String stringToConvert) {
-        // The String seperates the numbers by "," character so we use that to turn it
-        // into an array
-        String[] parts = stringToConvert.split(",");
-        int[] result = new int[parts.length];
+    // Same kernel for char buffers
+    static void encodeBlocks(char[] plaintext, int offset, int length, CompiledKey compiledKey, int padding,
+            int from, int to, char[] out, int outOffset, int[] block) {
+        int[] valueTable = compiledKey.valueTable;
+        char[] symbolTable = compiledKey.symbolTable;
+        int[] substitutionTable = compiledKey.substitutionTable;
+        int[] matrix = compiledKey.matrix;
+        int matrixSize = compiledKey.matrixSize;
+        int modulus = compiledKey.modulus;
+        long reciprocal = compiledKey.reciprocal;
+        int[] target = compiledKey.inverseTransposition;
 
-        for (int i = 0; i < parts.length; i++) {
-            result[i] = Integer.parseInt(parts[i].trim());
+        if (matrixSize == 2) {
+            int a = matrix[0];
+            int b = matrix[1];
+            int c = matrix[2];
+            int d = matrix[3];
+            for (int i = from; i < to; i += 2) {
+                int x;
+                int y;
+                if (i + 1 < length) {
+                    x = substitutionTable[toDigitValue(plaintext[offset + i], valueTable)];
+                    y = substitutionTable[toDigitValue(plaintext[offset + i + 1], valueTable)];
+                } else {
+                    x = i < length ? substitutionTable[toDigitValue(plaintext[offset + i], valueTable)] : padding;
+                    y = padding;
+                }
+                out[outOffset + target[i]] = symbolTable[reduce(a * x + b * y, modulus, reciprocal)];
+                out[outOffset + target[i + 1]] = symbolTable[reduce(c * x + d * y, modulus, reciprocal)];
+            }
+            return;
         }
 
-        return result;
+        for (int i = from; i < to; i += matrixSize) {
+            for (int k = 0; k < matrixSize; k++) {
+                block[k] = i + k < length
+                        ? substitutionTable[toDigitValue(plaintext[offset + i + k], valueTable)]
+                        : padding;
+            }
+            for (int row = 0; row < matrixSize; row++) {
+                int rowStart = row * matrixSize;
+                int sum = 0;
+                for (int k = 0; k < matrixSize; k++) {
+                    sum += matrix[rowStart + k] * block[k];
+                }
+                out[outOffset + target[i + row]] = symbolTable[reduce(sum, modulus, reciprocal)];
+            }
+        }
     }
 
-    private int[] makeProduct(String substitutionString, int[][] keyMatrix) {
-        // Convert the comma-separated string into an int array.
-        int[] subIntArray = convertStringToIntArray(substitutionString);
-        int n = subIntArray.length;
+    // Same kernel for ByteBuffers, all absolute gets and puts so the positions
+    // are left alone
+    static void encodeBlocks(ByteBuffer plaintext, int offset, int length, CompiledKey compiledKey, int padding,
+            int from, int to, ByteBuffer out, int outOffset, int[] block) {
+        int[] valueTable = compiledKey.valueTable;
+        char[] symbolTable = compiledKey.symbolTable;
+        int[] substitutionTable = compiledKey.substitutionTable;
+        int[] matrix = compiledKey.matrix;
+        int matrixSize = compiledKey.matrixSize;
+        int modulus = compiledKey.modulus;
+        long reciprocal = compiledKey.reciprocal;
+        int[] target = compiledKey.inverseTransposition;
 
-        // Ensure the array's length is a multiple of 2 (since each 2x1 vector has 2
-        // numbers)
-        if (n % 2 != 0) {
-            int padding = 0; // Default padding value (0)
-            int newLength = n + 1;
-            int[] padded = new int[newLength];
-            System.arraycopy(subIntArray, 0, padded, 0, n);
-            padded[newLength - 1] = padding;
-            subIntArray = padded;
-            n = subIntArray.length;
+        if (matrixSize == 2) {
+            int a = matrix[0];
+            int b = matrix[1];
+            int c = matrix[2];
+            int d = matrix[3];
+            for (int i = from; i < to; i += 2) {
+                int x;
+                int y;
+                if (i + 1 < length) {
+                    x = substitutionTable[toDigitValue(plaintext.get(offset + i) & 0xFF, valueTable)];
+                    y = substitutionTable[toDigitValue(plaintext.get(offset + i + 1) & 0xFF, valueTable)];
+                } else {
+                    x = i < length
+                            ? substitutionTable[toDigitValue(plaintext.get(offset + i) & 0xFF, valueTable)]
+                            : padding;
+                    y = padding;
+                }
+                out.put(outOffset + target[i], (byte) symbolTable[reduce(a * x + b * y, modulus, reciprocal)]);
+                out.put(outOffset + target[i + 1], (byte) symbolTable[reduce(c * x + d * y, modulus, reciprocal)]);
+            }
+            return;
         }
 
-        int[] result = new int[n];
+        for (int i = from; i < to; i += matrixSize) {
+            for (int k = 0; k < matrixSize; k++) {
+                block[k] = i + k < length
+                        ? substitutionTable[toDigitValue(plaintext.get(offset + i + k) & 0xFF, valueTable)]
+                        : padding;
+            }
+            for (int row = 0; row < matrixSize; row++) {
+                int rowStart = row * matrixSize;
+                int sum = 0;
+                for (int k = 0; k < matrixSize; k++) {
+                    sum += matrix[rowStart + k] * block[k];
+                }
+                out.put(outOffset + target[i + row], (byte) symbolTable[reduce(sum, modulus, reciprocal)]);
+            }
+        }
+    }
+
+    /*
+     * The substitution and matrix half of encodeInPlace: every block of the n
+     * letter cipher is read into block (past length it's the 0 padding) and its
+     * product written back over the same letters
+     */
+    private static void productBlocksInPlace(ByteBuffer buffer, int offset, int length, CompiledKey compiledKey,
+            int n, int[] block) {
+        int[] valueTable = compiledKey.valueTable;
+        char[] symbolTable = compiledKey.symbolTable;
+        int[] substitutionTable = compiledKey.substitutionTable;
+        int[] matrix = compiledKey.matrix;
+        int matrixSize = compiledKey.matrixSize;
+        int modulus = compiledKey.modulus;
+        long reciprocal = compiledKey.reciprocal;
+        for (int i = 0; i < n; i += matrixSize) {
+            for (int k = 0; k < matrixSize; k++) {
+                block[k] = i + k < length
+                        ? substitutionTable[toDigitValue(buffer.get(offset + i + k) & 0xFF, valueTable)]
+                        : 0;
+            }
+            for (int row = 0; row < matrixSize; row++) {
+                int rowStart = row * matrixSize;
+                int sum = 0;
+                for (int k = 0; k < matrixSize; k++) {
+                    sum += matrix[rowStart + k] * block[k];
+                }
+                buffer.put(offset + i + row, (byte) symbolTable[reduce(sum, modulus, reciprocal)]);
+            }
+        }
+    }
+
+    /*
+     * Applies the transposition to the letters in place, or undoes it when
+     * inverse is set: encoding leaves position p holding what was at
+     * transposition[p] and decoding moves what's at p to transposition[p].
+     *
+     * Following one cycle is a chain of dependent loads that the CPU can't get
+     * ahead of, so the key's cycles come pre-cut into runs. The first letter of
+     * every run is saved up front (it's the one the run before it overwrites),
+     * after which the runs don't depend on each other and WALKERS of them are
+     * stepped through together, giving the memory system that many misses to
+     * work on at once
+     */
+    private static void permuteInPlace(ByteBuffer buffer, int offset, CompiledKey compiledKey, boolean inverse) {
+        int[] transposition = compiledKey.transposition;
+        int[] starts = compiledKey.segmentStarts;
+        int[] lengths = compiledKey.segmentLengths;
+        int[] next = compiledKey.segmentNext;
+        int count = starts.length;
+        byte[] saved = new byte[count];
+        for (int k = 0; k < count; k++) {
+            saved[k] = buffer.get(offset + starts[k]);
+        }
+
+        int[] position = new int[WALKERS];
+        int[] remaining = new int[WALKERS];
+        byte[] carry = new byte[WALKERS];
+        for (int base = 0; base < count; base += WALKERS) {
+            int walkers = Math.min(WALKERS, count - base);
+            int steps = 0;
+            for (int w = 0; w < walkers; w++) {
+                position[w] = starts[base + w];
+                remaining[w] = lengths[base + w];
+                carry[w] = saved[base + w];
+                steps = Math.max(steps, remaining[w]);
+            }
+            for (int step = 0; step < steps; step++) {
+                for (int w = 0; w < walkers; w++) {
+                    int left = remaining[w];
+                    if (left == 0) {
+                        continue;
+                    }
+                    int from = position[w];
+                    int to = transposition[from];
+                    if (inverse) {
+                        // Scatter: what's at from moves on to to
+                        if (left == 1) {
+                            buffer.put(offset + to, carry[w]);
+                        } else {
+                            byte moved = buffer.get(offset + to);
+                            buffer.put(offset + to, carry[w]);
+                            carry[w] = moved;
+                        }
+                    } else {
+                        // Gather: from takes what's at to, the last one of the run
+                        // takes the next run's saved first letter
+                        buffer.put(offset + from, left == 1 ? saved[next[base + w]] : buffer.get(offset + to));
+                    }
+                    position[w] = to;
+                    remaining[w] = left - 1;
+                }
+            }
+        }
+    }
+
+    // Runs the substitution and product stages in place over the digit values in
+    // work and returns the padded length ready for transposition
+    private int encodeValues(int[] work, int length, CompiledKey compiledKey) {
+        int n = checkEncodeLength(length, compiledKey);
+        substitute(work, 0, length, compiledKey.substitutionTable);
+        // Ensure the array's length is a multiple of the matrix size (since each
+        // block vector needs that many numbers)
+        for (int i = length; i < n; i++) {
+            work[i] = 0; // Default padding value (0)
+        }
+        makeProduct(work, 0, n, compiledKey.matrix, compiledKey.matrixSize, compiledKey.modulus);
+        return n;
+    }
+
+    static int checkEncodeLength(int length, CompiledKey compiledKey) {
+        if (length == 0) {
+            throw CipherMetrics.error(CipherMetrics.ErrorType.INCORRECT_INPUT, INCORRECT_INPUT);
+        }
+        int n = encodedLength(length, compiledKey.matrixSize);
+        if (compiledKey.transposition.length != n) {
+            throw CipherMetrics.error(CipherMetrics.ErrorType.LENGTH_MISMATCH,
+                    "Error: Transposition key does not match the message length");
+        }
+        return n;
+    }
+
+    /*
+     * The individual stages
+     *
+     * Each one works in place over [from, to) of a digit value array so they can be
+     * run over the whole message or over chunks of it (see ParallelCipher). The
+     * product stages need from and to on a block boundary of the matrix size
+     */
+
+    // Maps each digit value to its substitution value
+    static void substitute(int[] values, int from, int to, int[] substitutionTable) {
+        for (int i = from; i < to; i++) {
+            values[i] = substitutionTable[values[i]];
+        }
+    }
+
+    /*
+     * Cleans up the string input into just an array of chars that are all in the
+     * alphabet, one pass that checks and maps every character through the lookup
+     * table. Whitespace gets dropped unless the alphabet has it (so multiple words
+     * work), and lower case becomes capitals for the letter alphabets
+     */
+    private char[] toCapitalChar(String input, Alphabet alphabet) {
+        int[] valueTable = alphabet.valueTable();
+        char[] symbolTable = alphabet.symbolTable();
+
+        char[] chars = new char[input.length()];
+        int length = 0;
+        for (int i = 0; i < input.length(); i++) {
+            char c = input.charAt(i);
+            int value = (c & ~0xFF) == 0 ? valueTable[c] : 0;
+            if (value != 0) {
+                chars[length++] = symbolTable[value];
+            } else if (!isWhitespace(c)) {
+                // Makes sure we don't perform our cipher on characters outside the alphabet
+                throw CipherMetrics.error(CipherMetrics.ErrorType.INCORRECT_INPUT, INCORRECT_INPUT);
+            }
+        }
+
+        if (length == 0) {
+            throw CipherMetrics.error(CipherMetrics.ErrorType.INCORRECT_INPUT, INCORRECT_INPUT);
+        }
+        return length == chars.length ? chars : Arrays.copyOf(chars, length);
+    }
+
+    // Same characters the old \s regex stripped out
+    static boolean isWhitespace(int c) {
+        return c == ' ' || c == '\t' || c == '\n' || c == '\u000B' || c == '\f' || c == '\r';
+    }
+
+    // Whitespace the alphabet doesn't have a value for can be skipped over
+    static boolean isSkippable(int c, Alphabet alphabet) {
+        return isWhitespace(c) && !alphabet.contains(c);
+    }
+
+    /*
+     * Converts a character to its positional value in the alphabet [A=1, B=2, ...
+     * Z=26 for letters] with the alphabet's lookup table indexed by the character
+     * code. The table holds 0 for anything outside the alphabet so the lookup is
+     * the validation too
+     */
+    static int toDigitValue(int c, int[] valueTable) {
+        int value = (c & ~0xFF) == 0 ? valueTable[c] : 0;
+        if (value == 0) {
+            throw CipherMetrics.error(CipherMetrics.ErrorType.INCORRECT_INPUT, INCORRECT_INPUT);
+        }
+        return value;
+    }
+
+    /*
+     * Reduces a non-negative sum of products to 1..modulus (0 becomes modulus) with
+     * a multiply and a shift instead of a division, reciprocal being
+     * CompiledKey.reciprocal. Exact for any sum below 2^40 / modulus, and the
+     * kernels stay far under that (16 * 256 * 256 at the very most)
+     */
+    static int reduce(int sum, int modulus, long reciprocal) {
+        int remainder = sum - (int) ((sum * reciprocal) >>> 40) * modulus;
+        return remainder == 0 ? modulus : remainder;
+    }
+
+    // Multiplies each block in place by the n x n key matrix
+    static void makeProduct(int[] values, int from, int to, int[] matrixKey, int matrixSize, int modulus) {
+        if (matrixSize != 2) {
+            multiplyBlocks(values, from, to, matrixKey, matrixSize, modulus);
+            return;
+        }
+
+        // The original 2x2 cipher gets its own unrolled loop
+        int a = matrixKey[0];
+        int b = matrixKey[1];
+        int c = matrixKey[2];
+        int d = matrixKey[3];
 
         // Process each 2x1 block (each pair of numbers).
-        for (int i = 0; i < n; i += 2) {
-            int x = subIntArray[i];
-            int y = subIntArray[i + 1];
+        for (int i = from; i < to; i += 2) {
+            int x = values[i];
+            int y = values[i + 1];
 
             // Multiply the 2x1 vector [x, y]^T by the 2x2 key matrix.
-            int newX = (keyMatrix[0][0] * x + keyMatrix[0][1] * y) % 26;
-            int newY = (keyMatrix[1][0] * x + keyMatrix[1][1] * y) % 26;
+            int newX = (a * x + b * y) % modulus;
+            int newY = (c * x + d * y) % modulus;
 
-            // Adjust values to ensure they are within 1..26.
+            // Adjust values to ensure they are within 1..26 (1..modulus).
             if (newX <= 0) {
-                newX += 26;
+                newX += modulus;
             }
             if (newY <= 0) {
-                newY += 26;
+                newY += modulus;
             }
 
-            result[i] = newX;
-            result[i + 1] = newY;
+            values[i] = newX;
+            values[i + 1] = newY;
         }
-        return result;
     }
 
-    private int[] transpose(int[] productArray, int[] transposeKey) {
-        int[] transposedArray = new int[productArray.length];
+    static void transpose(int[] productArray, int[] transposeKey, int from, int to, int[] out, int outOffset) {
         // Loop through each index of the transposeKey
-        for (int i = 0; i < transposedArray.length; i++) {
+        for (int i = from; i < to; i++) {
             // Directly swap the elements according to transposeKey
-            transposedArray[i] = productArray[transposeKey[i]];
+            out[outOffset + i] = productArray[transposeKey[i]];
         }
+    }
 
-        return transposedArray;
+    /*
+     * Decoding methods from here on below
+     */
+    public void decode(String cipherText, CipherKey decodedKey) {
+        String finalDecode;
+        try {
+            finalDecode = decodeToString(cipherText, decodedKey);
+        } catch (IllegalArgumentException e) {
+            System.out.println(e.getMessage());
+            return;
+        }
+        System.out.println("-----------------------------------------------------------------------------------");
+        System.out.println("Decoded Cipher: " + finalDecode);
+        System.out.println("-----------------------------------------------------------------------------------");
     }
 
-    private String mapToLetters(int[] numericValues) {
-        StringBuilder result = new StringBuilder();
+    // Same as decode but hands the message back instead of printing it
+    public String decodeToString(String cipherText, CipherKey decodedKey) {
+        char[] cipherChars = toCapitalChar(cipherText, decodedKey.getAlphabet());
+        char[] plaintextChars = new char[cipherChars.length];
+        decode(cipherChars, 0, cipherChars.length, decodedKey, plaintextChars, 0);
+        return new String(plaintextChars);
+    }
 
-        for (int num : numericValues) {
-            if (num == 0) {
-                result.append('Z');
+    /*
+     * Buffer based decoding
+     *
+     * The cipher length has to match the transposition key, and the decoded output
+     * is the same length (any padding added while encoding comes back with it)
+     */
+    public int decode(char[] cipherText, int offset, int length, CipherKey decodedKey,
+            char[] out, int outOffset, int[] work) {
+        long startTime = CipherMetrics.start();
+        CompiledKey compiledKey = decodedKey.getCompiledKey();
+        int[] transpositionKey = checkDecodeLength(length, compiledKey);
+        if (compiledKey.inverseTransposition != null) {
+            checkInvertible(compiledKey);
+            decodeBlocks(cipherText, offset, compiledKey, 0, length, out, outOffset, length, work);
+            CipherMetrics.record(CipherMetrics.Operation.DECODE, length, startTime);
+            return length;
+        }
+        int[] valueTable = compiledKey.valueTable;
+        for (int i = 0; i < length; i++) {
+            // Reverses the transposition by maping the value back to its original position
+            work[transpositionKey[i]] = toDigitValue(cipherText[offset + i], valueTable);
+        }
+        decodeValues(work, length, compiledKey);
+        char[] symbolTable = compiledKey.symbolTable;
+        for (int i = 0; i < length; i++) {
+            out[outOffset + i] = symbolTable[work[i]];
+        }
+        CipherMetrics.record(CipherMetrics.Operation.DECODE, length, startTime);
+        return length;
+    }
+
+    public int decode(char[] cipherText, int offset, int length, CipherKey decodedKey, char[] out, int outOffset) {
+        return decode(cipherText, offset, length, decodedKey, out, outOffset,
+                newWork(length, decodedKey.getCompiledKey()));
+    }
+
+    public int decode(byte[] cipherText, int offset, int length, CipherKey decodedKey,
+            byte[] out, int outOffset, int[] work) {
+        long startTime = CipherMetrics.start();
+        CompiledKey compiledKey = decodedKey.getCompiledKey();
+        int[] transpositionKey = checkDecodeLength(length, compiledKey);
+        if (compiledKey.inverseTransposition != null) {
+            checkInvertible(compiledKey);
+            decodeBlocks(cipherText, offset, compiledKey, 0, length, out, outOffset, length, work);
+            CipherMetrics.record(CipherMetrics.Operation.DECODE, length, startTime);
+            return length;
+        }
+        int[] valueTable = compiledKey.valueTable;
+        for (int i = 0; i < length; i++) {
+            work[transpositionKey[i]] = toDigitValue(cipherText[offset + i] & 0xFF, valueTable);
+        }
+        decodeValues(work, length, compiledKey);
+        char[] symbolTable = compiledKey.symbolTable;
+        for (int i = 0; i < length; i++) {
+            out[outOffset + i] = (byte) symbolTable[work[i]];
+        }
+        CipherMetrics.record(CipherMetrics.Operation.DECODE, length, startTime);
+        return length;
+    }
+
+    public int decode(byte[] cipherText, int offset, int length, CipherKey decodedKey, byte[] out, int outOffset) {
+        return decode(cipherText, offset, length, decodedKey, out, outOffset,
+                newWork(length, decodedKey.getCompiledKey()));
+    }
+
+    // ByteBuffer decoding, same conventions as the ByteBuffer encode
+    public int decode(ByteBuffer cipherText, CipherKey decodedKey, ByteBuffer out, int[] work) {
+        long startTime = CipherMetrics.start();
+        CompiledKey compiledKey = decodedKey.getCompiledKey();
+        int offset = cipherText.position();
+        int length = cipherText.remaining();
+        int[] transpositionKey = checkDecodeLength(length, compiledKey);
+        checkInvertible(compiledKey);
+        checkRemaining(out, length);
+        int outOffset = out.position();
+        if (compiledKey.inverseTransposition != null) {
+            decodeBlocks(cipherText, offset, compiledKey, 0, length, out, outOffset, length, work);
+        } else {
+            int[] valueTable = compiledKey.valueTable;
+            for (int i = 0; i < length; i++) {
+                work[transpositionKey[i]] = toDigitValue(cipherText.get(offset + i) & 0xFF, valueTable);
+            }
+            decodeValues(work, length, compiledKey);
+            char[] symbolTable = compiledKey.symbolTable;
+            for (int i = 0; i < length; i++) {
+                out.put(outOffset + i, (byte) symbolTable[work[i]]);
             }
-            // A=1, B=2, ..., Z=26 which is why we -1
-            char letter = (char) ('A' + num - 1);
-            result.append(letter);
         }
+        cipherText.position(offset + length);
+        out.position(outOffset + length);
+        CipherMetrics.record(CipherMetrics.Operation.DECODE, length, startTime);
+        return length;
+    }
 
-        return result.toString();
+    public int decode(ByteBuffer cipherText, CipherKey decodedKey, ByteBuffer out) {
+        return decode(cipherText, decodedKey, out, newWork(cipherText.remaining(), decodedKey.getCompiledKey()));
     }
 
     /*
-     * Decoding methods from here on below
+     * Decodes the cipher in [position, limit) over itself, the reverse of
+     * encodeInPlace: the transposition gets undone by walking the same cycles the
+     * other way and then every block is multiplied back and unsubstituted where it
+     * sits. Position and limit are left as they were
      */
-    public void decode(String cipherText, CipherKey decodedKey) {
+    public int decodeInPlace(ByteBuffer buffer, CipherKey decodedKey) {
+        long startTime = CipherMetrics.start();
+        CompiledKey compiledKey = decodedKey.getCompiledKey();
+        int offset = buffer.position();
+        int length = buffer.remaining();
+        int[] transpositionKey = checkDecodeLength(length, compiledKey);
+        checkInvertible(compiledKey);
+        if (compiledKey.inverseTransposition != null) {
+            permuteInPlace(buffer, offset, compiledKey, true);
+            // The letters are back in product order, which is just the decode kernel
+            // without a transposition
+            inverseBlocksInPlace(buffer, offset, length, compiledKey, new int[compiledKey.matrixSize]);
+        } else {
+            int[] work = new int[length];
+            int[] valueTable = compiledKey.valueTable;
+            for (int i = 0; i < length; i++) {
+                work[transpositionKey[i]] = toDigitValue(buffer.get(offset + i) & 0xFF, valueTable);
+            }
+            decodeValues(work, length, compiledKey);
+            char[] symbolTable = compiledKey.symbolTable;
+            for (int i = 0; i < length; i++) {
+                buffer.put(offset + i, (byte) symbolTable[work[i]]);
+            }
+        }
+        CipherMetrics.record(CipherMetrics.Operation.DECODE, length, startTime);
+        return length;
+    }
+
+    public int decodeInPlace(byte[] buffer, int offset, int length, CipherKey decodedKey) {
+        return decodeInPlace(ByteBuffer.wrap(buffer, offset, length), decodedKey);
+    }
 
-        // Call decodeTransposition
-        int[] decodedTransposition = decodeTransposition(cipherText, decodedKey.getTranspositionKey());
-        //System.out.println("Restored Transposition: " + Arrays.toString(decodedTransposition));
+    public int decode(int[] cipherValues, int offset, int length, CipherKey decodedKey,
+            int[] out, int outOffset, int[] work) {
+        long startTime = CipherMetrics.start();
+        CompiledKey compiledKey = decodedKey.getCompiledKey();
+        int[] transpositionKey = checkDecodeLength(length, compiledKey);
+        for (int i = 0; i < length; i++) {
+            int value = cipherValues[offset + i];
+            if (value < 1 || value > compiledKey.modulus) {
+                throw CipherMetrics.error(CipherMetrics.ErrorType.INCORRECT_INPUT, INCORRECT_INPUT);
+            }
+        }
+        decodeTransposition(cipherValues, offset, transpositionKey, 0, length, work);
+        decodeValues(work, length, compiledKey);
+        System.arraycopy(work, 0, out, outOffset, length);
+        CipherMetrics.record(CipherMetrics.Operation.DECODE, length, startTime);
+        return length;
+    }
 
-        // Call decodeProduct
-        int[] decodedProduct = decodeProduct(decodedTransposition, decodedKey.getMatrixKey());
-        //System.out.println("Restored Product: " + Arrays.toString(decodedProduct));
+    static int[] checkDecodeLength(int length, CompiledKey compiledKey) {
+        int[] transpositionKey = compiledKey.transposition;
+        if (length == 0 || length % compiledKey.matrixSize != 0) {
+            throw CipherMetrics.error(CipherMetrics.ErrorType.INCORRECT_INPUT, INCORRECT_INPUT);
+        }
+        if (transpositionKey.length != length) {
+            throw CipherMetrics.error(CipherMetrics.ErrorType.LENGTH_MISMATCH,
+                    "Error: Transposition key does not match the message length");
+        }
+        return transpositionKey;
+    }
 
-        // Call decodeSubstitute
-        int[] decodedSubstitute = decodeSubstitute(decodedProduct, decodedKey);
+    /*
+     * Batch decoding
+     *
+     * Reverses encodeBatch: message i is read from [cipherOffsets[i],
+     * cipherOffsets[i + 1]) of cipherText and its plaintext written to
+     * [plainOffsets[i], plainOffsets[i + 1]) of out. The plain offsets are the same
+     * ones the batch was encoded with, that's how the block padding gets dropped
+     */
+    public int decodeBatch(byte[] cipherText, int[] cipherOffsets, int count, CipherKey decodedKey,
+            byte[] out, int[] plainOffsets) {
+        long startTime = CipherMetrics.start();
+        CompiledKey compiledKey = decodedKey.getCompiledKey();
+        int blockSize = checkBlockKey(compiledKey);
+        checkInvertible(compiledKey);
+        int[] transpositionKey = compiledKey.transposition;
+        int[] inverseMatrix = compiledKey.inverseMatrix;
+        int matrixSize = compiledKey.matrixSize;
+        int[] inverseSubstitutionTable = compiledKey.inverseSubstitutionTable;
+        boolean fused = compiledKey.inverseTransposition != null;
+        int[] work = new int[fused ? matrixSize : blockSize];
 
-        // Convert the decodedSubstitute back into their letters
-        String finalDecode = mapToLetters(decodedSubstitute);
-        System.out.println("-----------------------------------------------------------------------------------");
-        System.out.println("Decoded Cipher: " + finalDecode);
-        System.out.println("-----------------------------------------------------------------------------------");
+        for (int m = 0; m < count; m++) {
+            int start = cipherOffsets[m];
+            int end = cipherOffsets[m + 1];
+            int position = plainOffsets[m];
+            int remaining = plainOffsets[m + 1] - position;
+            if ((end - start) % blockSize != 0
+                    || (end - start) != (remaining + blockSize - 1) / blockSize * blockSize) {
+                throw CipherMetrics.error(CipherMetrics.ErrorType.LENGTH_MISMATCH,
+                        "Error: Cipher length does not match the message length");
+            }
+            for (; start < end; start += blockSize) {
+                int length = Math.min(blockSize, remaining);
+                if (fused) {
+                    decodeBlocks(cipherText, start, compiledKey, 0, blockSize, out, position, length, work);
+                    position += length;
+                    remaining -= length;
+                    continue;
+                }
+                for (int i = 0; i < blockSize; i++) {
+                    work[transpositionKey[i]] = toDigitValue(cipherText[start + i] & 0xFF, compiledKey.valueTable);
+                }
+                decodeProduct(work, 0, blockSize, inverseMatrix, matrixSize, compiledKey.modulus);
+                decodeSubstitute(work, 0, blockSize, inverseSubstitutionTable);
+                for (int i = 0; i < length; i++) {
+                    out[position + i] = (byte) compiledKey.symbolTable[work[i]];
+                }
+                position += length;
+                remaining -= length;
+            }
+        }
+        CipherMetrics.record(CipherMetrics.Operation.DECODE_BATCH, plainOffsets[count] - plainOffsets[0], startTime);
+        return plainOffsets[count] - plainOffsets[0];
     }
 
-    // Swaps the positions of the ciphertext back
-    private int[] decodeTransposition(String cipherText, int[] transpositionKey) {
-        // Clean up cipherText and turn into array of chars for next method
-        char[] cipherChars = toCapitalChar(cipherText);
-        // Send the cipherText to be converted back into digitValues
-        int[] cipherDigits = toDigitValue(cipherChars);
+    /*
+     * The fused decode kernel
+     *
+     * Decodes the blocks in [from, to) (on a block boundary) in a single pass: each
+     * block pulls its letters from wherever the transposition sent them, runs them
+     * back through the inverse matrix and substitution table and writes the plain
+     * letters in order. Only positions below limit get written, which is how block
+     * modes drop their padding. The key has to be invertible, block is scratch for
+     * one matrix block
+     */
+    static void decodeBlocks(byte[] cipherText, int offset, CompiledKey compiledKey, int from, int to,
+            byte[] out, int outOffset, int limit, int[] block) {
+        int[] valueTable = compiledKey.valueTable;
+        char[] symbolTable = compiledKey.symbolTable;
+        int[] inverseSubstitutionTable = compiledKey.inverseSubstitutionTable;
+        int[] inverseMatrix = compiledKey.inverseMatrix;
+        int matrixSize = compiledKey.matrixSize;
+        int modulus = compiledKey.modulus;
+        long reciprocal = compiledKey.reciprocal;
+        int[] source = compiledKey.inverseTransposition;
 
-        // Create a new array to hold the decoded result
-        int[] decodedArray = new int[cipherDigits.length];
+        if (matrixSize == 2) {
+            int inverseA = inverseMatrix[0];
+            int inverseB = inverseMatrix[1];
+            int inverseC = inverseMatrix[2];
+            int inverseD = inverseMatrix[3];
+            for (int i = from; i < to; i += 2) {
+                int x = toDigitValue(cipherText[offset + source[i]] & 0xFF, valueTable);
+                int y = toDigitValue(cipherText[offset + source[i + 1]] & 0xFF, valueTable);
+                int origX = reduce(inverseA * x + inverseB * y, modulus, reciprocal);
+                int origY = reduce(inverseC * x + inverseD * y, modulus, reciprocal);
+                if (i + 1 < limit) {
+                    out[outOffset + i] = (byte) symbolTable[inverseSubstitutionTable[origX]];
+                    out[outOffset + i + 1] = (byte) symbolTable[inverseSubstitutionTable[origY]];
+                } else if (i < limit) {
+                    out[outOffset + i] = (byte) symbolTable[inverseSubstitutionTable[origX]];
+                }
+            }
+            return;
+        }
 
-        for (int i = 0; i < transpositionKey.length; i++) {
-            // Reverses the transposition by maping the value back to its original position
-            decodedArray[transpositionKey[i]] = cipherDigits[i];
-        }
-
-        return decodedArray;
-    }
-
-    // This method reverts the product operation that was done by performing the 
-    // inverse of matrix multiplication of a vector
-    private int[] decodeProduct(int[] decodedTransposition, int[][] matrixKey) {
-
-        // Compute the determinant of the key matrix.
-        int a = matrixKey[0][0];
-        int b = matrixKey[0][1];
-        int c = matrixKey[1][0];
-        int d = matrixKey[1][1];
-        int det = a * d - b * c;
-        // Normalize determinant modulo 26.
-        det = ((det % 26) + 26) % 26;
-
-        // Compute the modular inverse of the determinant.
-        int invDet = modInverse(det, 26);
-        if (invDet == -1) {
-            System.out.println("Error: Key matrix is not invertible modulo 26.");
-            return null;
-        }
-
-        // Compute the inverse key matrix using the formula for 2x2 matrices:
-        // inverse = (1/det) * [ d, -b; -c, a ]
-        int[][] inverseKey = new int[2][2];
-        inverseKey[0][0] = (d * invDet) % 26;
-        inverseKey[0][1] = (-b * invDet) % 26;
-        inverseKey[1][0] = (-c * invDet) % 26;
-        inverseKey[1][1] = (a * invDet) % 26;
-
-        // Normalize each entry to be in the range 1..26.
-        for (int i = 0; i < 2; i++) {
-            for (int j = 0; j < 2; j++) {
-                inverseKey[i][j] = ((inverseKey[i][j] % 26) + 26) % 26;
-                if (inverseKey[i][j] <= 0) {
-                    inverseKey[i][j] += 26;
+        for (int i = from; i < to; i += matrixSize) {
+            for (int k = 0; k < matrixSize; k++) {
+                block[k] = toDigitValue(cipherText[offset + source[i + k]] & 0xFF, valueTable);
+            }
+            for (int row = 0; row < matrixSize && i + row < limit; row++) {
+                int rowStart = row * matrixSize;
+                int sum = 0;
+                for (int k = 0; k < matrixSize; k++) {
+                    sum += inverseMatrix[rowStart + k] * block[k];
                 }
+                int value = reduce(sum, modulus, reciprocal);
+                out[outOffset + i + row] = (byte) symbolTable[inverseSubstitutionTable[value]];
             }
         }
+    }
+
+    // Same kernel for char buffers
+    static void decodeBlocks(char[] cipherText, int offset, CompiledKey compiledKey, int from, int to,
+            char[] out, int outOffset, int limit, int[] block) {
+        int[] valueTable = compiledKey.valueTable;
+        char[] symbolTable = compiledKey.symbolTable;
+        int[] inverseSubstitutionTable = compiledKey.inverseSubstitutionTable;
+        int[] inverseMatrix = compiledKey.inverseMatrix;
+        int matrixSize = compiledKey.matrixSize;
+        int modulus = compiledKey.modulus;
+        long reciprocal = compiledKey.reciprocal;
+        int[] source = compiledKey.inverseTransposition;
 
-        // Process each 2x1 block in decodedTransposition.
-        int n = decodedTransposition.length;
-        int[] result = new int[n];
+        if (matrixSize == 2) {
+            int inverseA = inverseMatrix[0];
+            int inverseB = inverseMatrix[1];
+            int inverseC = inverseMatrix[2];
+            int inverseD = inverseMatrix[3];
+            for (int i = from; i < to; i += 2) {
+                int x = toDigitValue(cipherText[offset + source[i]], valueTable);
+                int y = toDigitValue(cipherText[offset + source[i + 1]], valueTable);
+                int origX = reduce(inverseA * x + inverseB * y, modulus, reciprocal);
+                int origY = reduce(inverseC * x + inverseD * y, modulus, reciprocal);
+                if (i + 1 < limit) {
+                    out[outOffset + i] = symbolTable[inverseSubstitutionTable[origX]];
+                    out[outOffset + i + 1] = symbolTable[inverseSubstitutionTable[origY]];
+                } else if (i < limit) {
+                    out[outOffset + i] = symbolTable[inverseSubstitutionTable[origX]];
+                }
+            }
+            return;
+        }
+
+        for (int i = from; i < to; i += matrixSize) {
+            for (int k = 0; k < matrixSize; k++) {
+                block[k] = toDigitValue(cipherText[offset + source[i + k]], valueTable);
+            }
+            for (int row = 0; row < matrixSize && i + row < limit; row++) {
+                int rowStart = row * matrixSize;
+                int sum = 0;
+                for (int k = 0; k < matrixSize; k++) {
+                    sum += inverseMatrix[rowStart + k] * block[k];
+                }
+                int value = reduce(sum, modulus, reciprocal);
+                out[outOffset + i + row] = symbolTable[inverseSubstitutionTable[value]];
+            }
+        }
+    }
+
+    // Same kernel for ByteBuffers
+    static void decodeBlocks(ByteBuffer cipherText, int offset, CompiledKey compiledKey, int from, int to,
+            ByteBuffer out, int outOffset, int limit, int[] block) {
+        int[] valueTable = compiledKey.valueTable;
+        char[] symbolTable = compiledKey.symbolTable;
+        int[] inverseSubstitutionTable = compiledKey.inverseSubstitutionTable;
+        int[] inverseMatrix = compiledKey.inverseMatrix;
+        int matrixSize = compiledKey.matrixSize;
+        int modulus = compiledKey.modulus;
+        long reciprocal = compiledKey.reciprocal;
+        int[] source = compiledKey.inverseTransposition;
+
+        if (matrixSize == 2) {
+            int inverseA = inverseMatrix[0];
+            int inverseB = inverseMatrix[1];
+            int inverseC = inverseMatrix[2];
+            int inverseD = inverseMatrix[3];
+            for (int i = from; i < to; i += 2) {
+                int x = toDigitValue(cipherText.get(offset + source[i]) & 0xFF, valueTable);
+                int y = toDigitValue(cipherText.get(offset + source[i + 1]) & 0xFF, valueTable);
+                int origX = reduce(inverseA * x + inverseB * y, modulus, reciprocal);
+                int origY = reduce(inverseC * x + inverseD * y, modulus, reciprocal);
+                if (i + 1 < limit) {
+                    out.put(outOffset + i, (byte) symbolTable[inverseSubstitutionTable[origX]]);
+                    out.put(outOffset + i + 1, (byte) symbolTable[inverseSubstitutionTable[origY]]);
+                } else if (i < limit) {
+                    out.put(outOffset + i, (byte) symbolTable[inverseSubstitutionTable[origX]]);
+                }
+            }
+            return;
+        }
+
+        for (int i = from; i < to; i += matrixSize) {
+            for (int k = 0; k < matrixSize; k++) {
+                block[k] = toDigitValue(cipherText.get(offset + source[i + k]) & 0xFF, valueTable);
+            }
+            for (int row = 0; row < matrixSize && i + row < limit; row++) {
+                int rowStart = row * matrixSize;
+                int sum = 0;
+                for (int k = 0; k < matrixSize; k++) {
+                    sum += inverseMatrix[rowStart + k] * block[k];
+                }
+                int value = reduce(sum, modulus, reciprocal);
+                out.put(outOffset + i + row, (byte) symbolTable[inverseSubstitutionTable[value]]);
+            }
+        }
+    }
+
+    // The matrix and substitution half of decodeInPlace, every block is read and
+    // written back over itself
+    private static void inverseBlocksInPlace(ByteBuffer buffer, int offset, int length, CompiledKey compiledKey,
+            int[] block) {
+        int[] valueTable = compiledKey.valueTable;
+        char[] symbolTable = compiledKey.symbolTable;
+        int[] inverseSubstitutionTable = compiledKey.inverseSubstitutionTable;
+        int[] inverseMatrix = compiledKey.inverseMatrix;
+        int matrixSize = compiledKey.matrixSize;
+        int modulus = compiledKey.modulus;
+        long reciprocal = compiledKey.reciprocal;
+        for (int i = 0; i < length; i += matrixSize) {
+            for (int k = 0; k < matrixSize; k++) {
+                block[k] = toDigitValue(buffer.get(offset + i + k) & 0xFF, valueTable);
+            }
+            for (int row = 0; row < matrixSize; row++) {
+                int rowStart = row * matrixSize;
+                int sum = 0;
+                for (int k = 0; k < matrixSize; k++) {
+                    sum += inverseMatrix[rowStart + k] * block[k];
+                }
+                int value = reduce(sum, modulus, reciprocal);
+                buffer.put(offset + i + row, (byte) symbolTable[inverseSubstitutionTable[value]]);
+            }
+        }
+    }
+
+    // Runs the product and substitution stages backwards in place over work
+    private void decodeValues(int[] work, int length, CompiledKey compiledKey) {
+        checkInvertible(compiledKey);
+        decodeProduct(work, 0, length, compiledKey.inverseMatrix, compiledKey.matrixSize, compiledKey.modulus);
+        decodeSubstitute(work, 0, length, compiledKey.inverseSubstitutionTable);
+    }
+
+    static void checkInvertible(CompiledKey compiledKey) {
+        if (!compiledKey.isInvertible()) {
+            throw CipherMetrics.error(CipherMetrics.ErrorType.NOT_INVERTIBLE,
+                    "Error: Key matrix is not invertible modulo " + compiledKey.modulus + ".");
+        }
+    }
+
+    // Swaps the positions of the ciphertext back
+    static void decodeTransposition(int[] cipherDigits, int offset, int[] transpositionKey,
+            int from, int to, int[] out) {
+        for (int i = from; i < to; i++) {
+            // Reverses the transposition by maping the value back to its original position
+            out[transpositionKey[i]] = cipherDigits[offset + i];
+        }
+    }
+
+    // This method reverts the product operation that was done by performing the
+    // inverse of matrix multiplication of a vector, using the inverse matrix the
+    // compiled key already worked out
+    static void decodeProduct(int[] values, int from, int to, int[] inverseMatrix, int matrixSize, int modulus) {
+        if (matrixSize != 2) {
+            multiplyBlocks(values, from, to, inverseMatrix, matrixSize, modulus);
+            return;
+        }
+
+        int inverseA = inverseMatrix[0];
+        int inverseB = inverseMatrix[1];
+        int inverseC = inverseMatrix[2];
+        int inverseD = inverseMatrix[3];
 
         // Iterate through each 2-element block.
-        for (int i = 0; i < n; i += 2) {
-            int x = decodedTransposition[i];
-            int y = decodedTransposition[i + 1];
+        for (int i = from; i < to; i += 2) {
+            int x = values[i];
+            int y = values[i + 1];
 
             // Multiply inverseKey by the 2x1 vector [x, y]^T.
-            int origX = (inverseKey[0][0] * x + inverseKey[0][1] * y) % 26;
-            int origY = (inverseKey[1][0] * x + inverseKey[1][1] * y) % 26;
+            int origX = (inverseA * x + inverseB * y) % modulus;
+            int origY = (inverseC * x + inverseD * y) % modulus;
 
-            // Adjust if the result is zero or negative (to keep numbers 1-26).
+            // Adjust if the result is zero or negative (to keep numbers 1-26, or 1-modulus).
             if (origX <= 0) {
-                origX += 26;
+                origX += modulus;
             }
             if (origY <= 0) {
-                origY += 26;
+                origY += modulus;
             }
 
-            result[i] = origX;
-            result[i + 1] = origY;
+            values[i] = origX;
+            values[i + 1] = origY;
         }
-        return result;
     }
 
-    // Once we have the digit values, we need to revert them back to their original mapping
-    private int[] decodeSubstitute(int[] decodedProduct, CipherKey decodedKey) {
-        Map<Integer, Integer> inverseSubstitutionKey = decodedKey.getInverseSubstitutionKey();
-        int[] originalValues = new int[decodedProduct.length];
-
-        for (int i = 0; i < decodedProduct.length; i++) {
-            originalValues[i] = inverseSubstitutionKey.getOrDefault(decodedProduct[i], decodedProduct[i]);
+    /*
+     * The general n x n block multiply used for both directions
+     *
+     * Every output value needs the whole input block so each block is worked out
+     * into a scratch row before being written back. The values and the key are at
+     * most the modulus (256 at most) so the sums can't overflow for any allowed
+     * matrix size, and they only get reduced once per output instead of once per
+     * term. The inner loop is a plain dot product over contiguous ints which is the
+     * shape the JIT vectorizes
+     */
+    private static void multiplyBlocks(int[] values, int from, int to, int[] matrix, int size, int modulus) {
+        int[] block = new int[size];
+        for (int i = from; i < to; i += size) {
+            for (int row = 0; row < size; row++) {
+                int rowStart = row * size;
+                int sum = 0;
+                for (int k = 0; k < size; k++) {
+                    sum += matrix[rowStart + k] * values[i + k];
+                }
+                block[row] = sum;
+            }
+            for (int row = 0; row < size; row++) {
+                // Adjust values to ensure they are within 1..modulus.
+                int value = block[row] % modulus;
+                values[i + row] = value <= 0 ? value + modulus : value;
+            }
         }
-
-        return originalValues;
     }
 
-    // Computes the modular inverse of a modulo m
-    private int modInverse(int a, int m) {
-        a = a % m;
-        for (int x = 1; x < m; x++) {
-            if ((a * x) % m == 1) {
-                return x;
-            }
+    // Once we have the digit values, we need to revert them back to their original mapping
+    static void decodeSubstitute(int[] values, int from, int to, int[] inverseSubstitutionTable) {
+        for (int i = from; i < to; i++) {
+            values[i] = inverseSubstitutionTable[values[i]];
         }
-        return -1; // No modular inverse exists if gcd(a, m) != 1
     }
 }
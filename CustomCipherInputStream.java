@@ -0,0 +1,180 @@
+import java.io.EOFException;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PushbackInputStream;
+
+/*
+ * Reads cipher written by CustomCipherOutputStream from the wrapped stream and
+ * hands back the decoded plaintext
+ *
+ * Blocks are decoded one at a time with the same block key used to encode them.
+ * A decoded block is only released once the next byte shows whether it was the
+ * last one, that way the padding recorded in the trailer can be dropped. When the
+ * key's alphabet has '=' in it a block can start with the trailer marker too, so
+ * then a '=' only counts as the trailer if exactly the padding count follows it
+ */
+public class CustomCipherInputStream extends FilterInputStream {
+
+    private final CustomCipher cipher = new CustomCipher();
+    private final CipherKey blockKey;
+    private final int blockSize;
+    private final boolean markerInAlphabet;
+
+    private final byte[] cipherBlock;
+    private final byte[] plainBlock;
+    private final int[] work;
+    private int position;
+    private int limit;
+    private boolean started;
+    private boolean lastBlock;
+
+    public CustomCipherInputStream(InputStream in, CipherKey blockKey) {
+        super(blockKey.getAlphabet().contains(CustomCipherOutputStream.TRAILER_MARKER)
+                ? new PushbackInputStream(in, CustomCipherOutputStream.TRAILER_LENGTH)
+                : in);
+        this.blockKey = blockKey;
+        this.markerInAlphabet = blockKey.getAlphabet().contains(CustomCipherOutputStream.TRAILER_MARKER);
+        this.blockSize = CustomCipher.checkBlockKey(blockKey.getCompiledKey());
+        this.cipherBlock = new byte[blockSize];
+        this.plainBlock = new byte[blockSize];
+        this.work = new int[blockSize];
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (position == limit && !fill()) {
+            return -1;
+        }
+        return plainBlock[position++] & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        if (position == limit && !fill()) {
+            return -1;
+        }
+        int n = Math.min(len, limit - position);
+        System.arraycopy(plainBlock, position, b, off, n);
+        position += n;
+        return n;
+    }
+
+    @Override
+    public int available() {
+        return limit - position;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        long skipped = 0;
+        while (skipped < n) {
+            if (position == limit && !fill()) {
+                break;
+            }
+            int step = (int) Math.min(n - skipped, limit - position);
+            position += step;
+            skipped += step;
+        }
+        return skipped;
+    }
+
+    @Override
+    public boolean markSupported() {
+        return false;
+    }
+
+    // Decodes the next block, returns false once the trailer has been reached
+    private boolean fill() throws IOException {
+        if (lastBlock) {
+            return false;
+        }
+
+        // The first byte of a block is already sitting in cipherBlock[0] after the
+        // look ahead, except at the very start of the stream
+        if (!started) {
+            started = true;
+            int first = in.read();
+            if (isTrailer(first)) {
+                // Empty message, only the trailer was written
+                if (readPadding() != 0) {
+                    throw new IOException("Error: Corrupt cipher trailer");
+                }
+                lastBlock = true;
+                return false;
+            }
+            if (first < 0) {
+                throw new EOFException("Error: Missing cipher trailer");
+            }
+            cipherBlock[0] = (byte) first;
+        }
+        readFully(cipherBlock, 1, blockSize - 1);
+
+        try {
+            cipher.decode(cipherBlock, 0, blockSize, blockKey, plainBlock, 0, work);
+        } catch (IllegalArgumentException e) {
+            throw new IOException(e.getMessage(), e);
+        }
+        position = 0;
+        limit = blockSize;
+
+        // Peek at the next byte to find out if that was the last block
+        int next = in.read();
+        if (isTrailer(next)) {
+            int padding = readPadding();
+            if (padding < 0 || padding >= blockSize) {
+                throw new IOException("Error: Corrupt cipher trailer");
+            }
+            limit = blockSize - padding;
+            lastBlock = true;
+        } else if (next < 0) {
+            throw new EOFException("Error: Missing cipher trailer");
+        } else {
+            cipherBlock[0] = (byte) next;
+        }
+        return limit > 0;
+    }
+
+    /*
+     * Whether the byte just read starts the trailer. With the marker in the
+     * alphabet this reads ahead to the end of the stream and pushes what it read
+     * back so the padding (or the rest of the block) can still be read after
+     */
+    private boolean isTrailer(int b) throws IOException {
+        if (b != CustomCipherOutputStream.TRAILER_MARKER) {
+            return false;
+        }
+        if (!markerInAlphabet) {
+            return true;
+        }
+        byte[] ahead = new byte[CustomCipherOutputStream.TRAILER_LENGTH];
+        int count = 0;
+        int n;
+        while (count < ahead.length && (n = in.read(ahead, count, ahead.length - count)) > 0) {
+            count += n;
+        }
+        ((PushbackInputStream) in).unread(ahead, 0, count);
+        return count == CustomCipherOutputStream.TRAILER_LENGTH - 1;
+    }
+
+    private int readPadding() throws IOException {
+        byte[] trailer = new byte[CustomCipherOutputStream.TRAILER_LENGTH - 1];
+        readFully(trailer, 0, trailer.length);
+        return ((trailer[0] & 0xFF) << 24) | ((trailer[1] & 0xFF) << 16)
+                | ((trailer[2] & 0xFF) << 8) | (trailer[3] & 0xFF);
+    }
+
+    private void readFully(byte[] b, int off, int len) throws IOException {
+        while (len > 0) {
+            int n = in.read(b, off, len);
+            if (n < 0) {
+                throw new EOFException("Error: Cipher ended in the middle of a block");
+            }
+            off += n;
+            len -= n;
+        }
+    }
+}
@@ -0,0 +1,127 @@
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/*
+ * Encodes everything written to it and passes the cipher on to the wrapped stream
+ *
+ * Instead of one transposition key as long as the whole message, the plaintext is
+ * cut into blocks the size of the key's transposition key and every block is
+ * encoded with that same key. Memory use only depends on the block size so input
+ * of any size can go through here. Generate the key with new CipherKey(blockSize)
+ *
+ * Stream layout:
+ *   [block][block]...[block] '=' [padding count as a 4 byte int]
+ *
+ * The final block is filled up with padding letters and the trailer records how
+ * many of them were added so CustomCipherInputStream can strip exactly those back
+ * off. The trailer is always written, even when the input ends on a block boundary.
+ * PADDING_LETTER is in every alphabet, and for alphabets that have a '=' symbol
+ * of their own the reading side tells the trailer apart by it being the last
+ * TRAILER_LENGTH bytes of the stream
+ */
+public class CustomCipherOutputStream extends FilterOutputStream {
+
+    static final int TRAILER_MARKER = '=';
+    static final int TRAILER_LENGTH = 5;
+
+    private final CustomCipher cipher = new CustomCipher();
+    private final CipherKey blockKey;
+    private final Alphabet alphabet;
+    private final int blockSize;
+
+    private final byte[] plainBlock;
+    private final byte[] cipherBlock;
+    private final int[] work;
+    private int count;
+    private boolean finished;
+
+    public CustomCipherOutputStream(OutputStream out, CipherKey blockKey) {
+        super(out);
+        this.blockKey = blockKey;
+        this.alphabet = blockKey.getAlphabet();
+        this.blockSize = CustomCipher.checkBlockKey(blockKey.getCompiledKey());
+        this.plainBlock = new byte[blockSize];
+        this.cipherBlock = new byte[blockSize];
+        this.work = new int[blockSize];
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        ensureOpen();
+        // Whitespace gets skipped just like it does for the String based encode,
+        // unless the alphabet has a symbol for it
+        if (CustomCipher.isSkippable(b & 0xFF, alphabet)) {
+            return;
+        }
+        plainBlock[count++] = (byte) b;
+        if (count == blockSize) {
+            writeBlock();
+        }
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        ensureOpen();
+        int end = off + len;
+        for (int i = off; i < end; i++) {
+            byte value = b[i];
+            if (!CustomCipher.isSkippable(value & 0xFF, alphabet)) {
+                plainBlock[count++] = value;
+                if (count == blockSize) {
+                    writeBlock();
+                }
+            }
+        }
+    }
+
+    /*
+     * Pads and writes the last block followed by the trailer without closing the
+     * wrapped stream. Nothing else can be written afterwards
+     */
+    public void finish() throws IOException {
+        if (finished) {
+            return;
+        }
+        int padding = 0;
+        if (count > 0) {
+            padding = blockSize - count;
+            while (count < blockSize) {
+                plainBlock[count++] = CustomCipher.PADDING_LETTER;
+            }
+            writeBlock();
+        }
+        out.write(TRAILER_MARKER);
+        out.write(padding >>> 24);
+        out.write(padding >>> 16);
+        out.write(padding >>> 8);
+        out.write(padding);
+        out.flush();
+        finished = true;
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            finish();
+        } finally {
+            out.close();
+        }
+    }
+
+    private void writeBlock() throws IOException {
+        try {
+            cipher.encode(plainBlock, 0, blockSize, blockKey, cipherBlock, 0, work);
+        } catch (IllegalArgumentException e) {
+            throw new IOException(e.getMessage(), e);
+        }
+        out.write(cipherBlock, 0, blockSize);
+        count = 0;
+    }
+
+    private void ensureOpen() throws IOException {
+        if (finished) {
+            throw new IOException("Error: Stream has already been finished");
+        }
+    }
+}
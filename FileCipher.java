@@ -0,0 +1,179 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/*
+ * Encodes and decodes whole files through memory mapped windows
+ *
+ * The cipher is worked out straight from the mapped input into the mapped output,
+ * so the data never gets copied into Strings or char arrays and the heap only
+ * holds one block of work values. Files bigger than 2 GB are handled by mapping
+ * one window at a time, every window holds whole blocks.
+ *
+ * The output uses the same layout as CustomCipherOutputStream (blocks followed by
+ * the padding trailer) so either side can read what the other wrote. Like the
+ * buffer API the input has to hold nothing but symbols of the key's alphabet
+ */
+public class FileCipher {
+
+    // Roughly how much of each file gets mapped at once
+    public static final int DEFAULT_WINDOW_SIZE = 64 * 1024 * 1024;
+
+    private final int windowSize;
+
+    public FileCipher() {
+        this(DEFAULT_WINDOW_SIZE);
+    }
+
+    public FileCipher(int windowSize) {
+        this.windowSize = windowSize;
+    }
+
+    public void encode(Path input, Path output, CipherKey blockKey) throws IOException {
+        long startTime = CipherMetrics.start();
+        CompiledKey compiledKey = blockKey.getCompiledKey();
+        int blockSize = CustomCipher.checkBlockKey(compiledKey);
+        int window = windowFor(blockSize);
+        int[] work = new int[blockSize];
+
+        try (FileChannel in = FileChannel.open(input, StandardOpenOption.READ);
+                FileChannel out = FileChannel.open(output, StandardOpenOption.READ, StandardOpenOption.WRITE,
+                        StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            long size = in.size();
+            long blocks = (size + blockSize - 1) / blockSize;
+            int padding = (int) (blocks * blockSize - size);
+
+            // Input and output windows line up since every block keeps its size
+            for (long position = 0; position < size; position += window) {
+                int length = (int) Math.min(window, size - position);
+                int outLength = (length + blockSize - 1) / blockSize * blockSize;
+                MappedByteBuffer source = in.map(FileChannel.MapMode.READ_ONLY, position, length);
+                MappedByteBuffer target = out.map(FileChannel.MapMode.READ_WRITE, position, outLength);
+                for (int offset = 0; offset < length; offset += blockSize) {
+                    encodeBlock(source, offset, Math.min(blockSize, length - offset), compiledKey, work,
+                            target, offset);
+                }
+            }
+            writeTrailer(out, blocks * blockSize, padding);
+            CipherMetrics.record(CipherMetrics.Operation.FILE_ENCODE, blocks * blockSize, startTime);
+        }
+    }
+
+    public void decode(Path input, Path output, CipherKey blockKey) throws IOException {
+        long startTime = CipherMetrics.start();
+        CompiledKey compiledKey = blockKey.getCompiledKey();
+        int blockSize = CustomCipher.checkBlockKey(compiledKey);
+        CustomCipher.checkInvertible(compiledKey);
+        int window = windowFor(blockSize);
+        int[] work = new int[blockSize];
+
+        try (FileChannel in = FileChannel.open(input, StandardOpenOption.READ);
+                FileChannel out = FileChannel.open(output, StandardOpenOption.READ, StandardOpenOption.WRITE,
+                        StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            long cipherSize = in.size() - CustomCipherOutputStream.TRAILER_LENGTH;
+            int padding = readTrailer(in, cipherSize);
+            if (cipherSize % blockSize != 0 || padding < 0 || padding >= blockSize
+                    || (cipherSize == 0 && padding != 0)) {
+                throw new IOException("Error: Corrupt cipher trailer");
+            }
+            long size = cipherSize - padding;
+
+            for (long position = 0; position < cipherSize; position += window) {
+                int length = (int) Math.min(window, cipherSize - position);
+                int outLength = (int) Math.min(length, size - position);
+                MappedByteBuffer source = in.map(FileChannel.MapMode.READ_ONLY, position, length);
+                MappedByteBuffer target = out.map(FileChannel.MapMode.READ_WRITE, position, outLength);
+                for (int offset = 0; offset < length; offset += blockSize) {
+                    decodeBlock(source, offset, compiledKey, work, target, offset,
+                            Math.min(blockSize, outLength - offset));
+                }
+            }
+            CipherMetrics.record(CipherMetrics.Operation.FILE_DECODE, size, startTime);
+        }
+    }
+
+    // Whole blocks per window, and never less than one block
+    private int windowFor(int blockSize) {
+        return Math.max(1, windowSize / blockSize) * blockSize;
+    }
+
+    // Same stages as CustomCipher.encode, reading and writing the mapped buffers in
+    // place (through the fused ByteBuffer kernel when the key has a real
+    // permutation). A short last block gets padded just like the streams do it
+    private static void encodeBlock(ByteBuffer source, int offset, int length, CompiledKey compiledKey,
+            int[] work, ByteBuffer target, int targetOffset) {
+        int blockSize = work.length;
+        int[] valueTable = compiledKey.valueTable;
+        if (compiledKey.inverseTransposition != null) {
+            int padding = compiledKey.substitutionTable[valueTable[CustomCipher.PADDING_LETTER]];
+            CustomCipher.encodeBlocks(source, offset, length, compiledKey, padding, 0, blockSize, target,
+                    targetOffset, work);
+            return;
+        }
+        for (int i = 0; i < length; i++) {
+            work[i] = CustomCipher.toDigitValue(source.get(offset + i) & 0xFF, valueTable);
+        }
+        for (int i = length; i < blockSize; i++) {
+            work[i] = valueTable[CustomCipher.PADDING_LETTER];
+        }
+        CustomCipher.substitute(work, 0, blockSize, compiledKey.substitutionTable);
+        CustomCipher.makeProduct(work, 0, blockSize, compiledKey.matrix, compiledKey.matrixSize,
+                compiledKey.modulus);
+        int[] transpositionKey = compiledKey.transposition;
+        char[] symbolTable = compiledKey.symbolTable;
+        for (int i = 0; i < blockSize; i++) {
+            target.put(targetOffset + i, (byte) symbolTable[work[transpositionKey[i]]]);
+        }
+    }
+
+    // Decodes one full block and writes the first length letters of it, the rest
+    // is padding
+    private static void decodeBlock(ByteBuffer source, int offset, CompiledKey compiledKey, int[] work,
+            ByteBuffer target, int targetOffset, int length) {
+        int blockSize = work.length;
+        if (compiledKey.inverseTransposition != null) {
+            CustomCipher.decodeBlocks(source, offset, compiledKey, 0, blockSize, target, targetOffset, length, work);
+            return;
+        }
+        int[] transpositionKey = compiledKey.transposition;
+        int[] valueTable = compiledKey.valueTable;
+        for (int i = 0; i < blockSize; i++) {
+            work[transpositionKey[i]] = CustomCipher.toDigitValue(source.get(offset + i) & 0xFF, valueTable);
+        }
+        CustomCipher.decodeProduct(work, 0, blockSize, compiledKey.inverseMatrix, compiledKey.matrixSize,
+                compiledKey.modulus);
+        CustomCipher.decodeSubstitute(work, 0, blockSize, compiledKey.inverseSubstitutionTable);
+        char[] symbolTable = compiledKey.symbolTable;
+        for (int i = 0; i < length; i++) {
+            target.put(targetOffset + i, (byte) symbolTable[work[i]]);
+        }
+    }
+
+    private static void writeTrailer(FileChannel out, long position, int padding) throws IOException {
+        ByteBuffer trailer = ByteBuffer.allocate(CustomCipherOutputStream.TRAILER_LENGTH);
+        trailer.put((byte) CustomCipherOutputStream.TRAILER_MARKER).putInt(padding).flip();
+        while (trailer.hasRemaining()) {
+            position += out.write(trailer, position);
+        }
+    }
+
+    private static int readTrailer(FileChannel in, long position) throws IOException {
+        if (position < 0) {
+            throw new IOException("Error: Missing cipher trailer");
+        }
+        ByteBuffer trailer = ByteBuffer.allocate(CustomCipherOutputStream.TRAILER_LENGTH);
+        while (trailer.hasRemaining()) {
+            if (in.read(trailer, position + trailer.position()) < 0) {
+                throw new IOException("Error: Missing cipher trailer");
+            }
+        }
+        trailer.flip();
+        if (trailer.get() != CustomCipherOutputStream.TRAILER_MARKER) {
+            throw new IOException("Error: Missing cipher trailer");
+        }
+        return trailer.getInt();
+    }
+}
@@ -0,0 +1,319 @@
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.Base64;
+
+/*
+ * Compact binary form of a CipherKey, for moving keys between hosts
+ *
+ * The comma separated master key is 30+n decimal numbers, which is slow to parse
+ * and several times bigger than the key really is. The binary form is:
+ *
+ *   header         'C' 'K', version, matrix size, transposition length (4 bytes)
+ *   substitution   26 values of 1-26 packed at 5 bits each (17 bytes)
+ *   matrix         n * n values, one byte each
+ *   transposition  the permutation packed at ceil(log2 n) bits per position
+ *
+ * Keys over any other alphabet than LETTERS are written as version 2, which adds
+ * the alphabet after the header and sizes the rest to fit it:
+ *
+ *   header         same 8 bytes with version 2
+ *   alphabet       the Alphabet's ordinal (1 byte)
+ *   substitution   N values of 1-N stored as value - 1 at ceil(log2 N) bits each
+ *   matrix         n * n values, two bytes each
+ *   transposition  same as version 1
+ *
+ * LETTERS keys stay on version 1 so nothing already written changes. Multi byte
+ * values are big endian like the rest of ByteBuffer. The text form is "ck1:"
+ * followed by the same bytes in URL safe Base64 (whatever the binary version),
+ * and anything without the prefix is read as the old comma separated list so
+ * existing keys keep working
+ */
+public final class KeyCodec {
+
+    public static final int VERSION = 1;
+    public static final int ALPHABET_VERSION = 2;
+    public static final String TEXT_PREFIX = "ck" + VERSION + ":";
+
+    private static final byte MAGIC_0 = 'C';
+    private static final byte MAGIC_1 = 'K';
+    private static final int HEADER_LENGTH = 8;
+    private static final int SUBSTITUTION_LENGTH = (26 * 5 + 7) / 8;
+
+    private KeyCodec() {
+    }
+
+    // How many bytes write will put down for this key
+    public static int encodedSize(CipherKey key) {
+        Alphabet alphabet = key.getAlphabet();
+        int matrixLength = key.getMatrixSize() * key.getMatrixSize();
+        int n = key.getMasterKey().length - alphabet.size() - matrixLength;
+        return (int) encodedSize(alphabet, matrixLength, n);
+    }
+
+    // In long since n comes straight out of the header when reading, and a forged
+    // one would overflow an int
+    private static long encodedSize(Alphabet alphabet, int matrixLength, long n) {
+        if (alphabet == Alphabet.LETTERS) {
+            return HEADER_LENGTH + SUBSTITUTION_LENGTH + matrixLength + packedLength(n);
+        }
+        return HEADER_LENGTH + 1 + packedLength(alphabet.size()) + 2 * matrixLength + packedLength(n);
+    }
+
+    /*
+     * Writes the key at the buffer's position and moves it past the key. Only keys
+     * this cipher could have generated fit the format: a substitution of 1 to the
+     * alphabet size, matrix values of 0-255 (0-65535 past LETTERS) and a
+     * transposition that stays inside the message
+     */
+    public static void write(CipherKey key, ByteBuffer out) {
+        int[] masterKey = key.getMasterKey();
+        Alphabet alphabet = key.getAlphabet();
+        int modulus = alphabet.size();
+        boolean letters = alphabet == Alphabet.LETTERS;
+        int matrixSize = key.getMatrixSize();
+        int matrixLength = matrixSize * matrixSize;
+        int transpositionStart = modulus + matrixLength;
+        int n = masterKey.length - transpositionStart;
+        if (out.remaining() < encodedSize(alphabet, matrixLength, n)) {
+            throw new IllegalArgumentException("Error: Buffer is too small for the key");
+        }
+
+        out.put(MAGIC_0).put(MAGIC_1).put((byte) (letters ? VERSION : ALPHABET_VERSION)).put((byte) matrixSize)
+                .putInt(n);
+        if (!letters) {
+            out.put((byte) alphabet.ordinal());
+        }
+
+        BitWriter bits = new BitWriter(out);
+        int substitutionWidth = bitWidth(modulus);
+        for (int i = 0; i < modulus; i++) {
+            int value = masterKey[i];
+            if (value < 1 || value > modulus) {
+                throw new IllegalArgumentException("Error: Substitution key values must be between 1 and " + modulus);
+            }
+            // Version 1 keeps the value itself, 26 needs the 5 bits either way
+            bits.write(letters ? value : value - 1, substitutionWidth);
+        }
+        bits.flush();
+
+        int maximum = letters ? 255 : 65535;
+        for (int i = modulus; i < transpositionStart; i++) {
+            int value = masterKey[i];
+            if (value < 0 || value > maximum) {
+                throw new IllegalArgumentException("Error: Matrix key values must be between 0 and " + maximum);
+            }
+            if (letters) {
+                out.put((byte) value);
+            } else {
+                out.putShort((short) value);
+            }
+        }
+
+        int width = bitWidth(n);
+        for (int i = transpositionStart; i < masterKey.length; i++) {
+            int value = masterKey[i];
+            if (value < 0 || value >= n) {
+                throw new IllegalArgumentException("Error: Transposition key values must be between 0 and " + (n - 1));
+            }
+            bits.write(value, width);
+        }
+        bits.flush();
+    }
+
+    // Reads a key written by write from the buffer's position and moves past it
+    public static CipherKey read(ByteBuffer in) {
+        int matrixSize = peekMatrixSize(in);
+        Alphabet alphabet = peekAlphabet(in);
+        return new CipherKey(readMasterKey(in), matrixSize, alphabet);
+    }
+
+    public static byte[] toBytes(CipherKey key) {
+        byte[] bytes = new byte[encodedSize(key)];
+        write(key, ByteBuffer.wrap(bytes));
+        return bytes;
+    }
+
+    public static CipherKey fromBytes(byte[] bytes) {
+        return read(ByteBuffer.wrap(bytes));
+    }
+
+    public static String toText(CipherKey key) {
+        return TEXT_PREFIX + Base64.getUrlEncoder().withoutPadding().encodeToString(toBytes(key));
+    }
+
+    // Takes either the text form or the legacy comma separated master key
+    public static CipherKey fromText(String text) {
+        if (isText(text)) {
+            return read(decodeText(text));
+        }
+        return new CipherKey(CipherKey.parseMasterKey(text));
+    }
+
+    static boolean isText(String text) {
+        return text.strip().startsWith(TEXT_PREFIX);
+    }
+
+    static ByteBuffer decodeText(String text) {
+        String stripped = text.strip();
+        try {
+            return ByteBuffer.wrap(Base64.getUrlDecoder().decode(stripped.substring(TEXT_PREFIX.length())));
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("Error: Key text is not valid Base64");
+        }
+    }
+
+    // Checks the header without moving the buffer and returns the matrix size in it
+    static int peekMatrixSize(ByteBuffer in) {
+        int position = in.position();
+        if (in.remaining() < HEADER_LENGTH || in.get(position) != MAGIC_0 || in.get(position + 1) != MAGIC_1) {
+            throw new IllegalArgumentException("Error: Not a binary cipher key");
+        }
+        int version = in.get(position + 2);
+        if (version != VERSION && version != ALPHABET_VERSION) {
+            throw new IllegalArgumentException("Error: Unsupported key format version " + version);
+        }
+        return in.get(position + 3) & 0xFF;
+    }
+
+    // How many bytes the key in the header says it takes, without moving the buffer.
+    // Lets a caller turn away a key that can't fit in what it was sent in before
+    // anything is parsed
+    static long peekEncodedSize(ByteBuffer in) {
+        int matrixSize = peekMatrixSize(in);
+        Alphabet alphabet = peekAlphabet(in);
+        int n = in.getInt(in.position() + 4);
+        if (n < 0) {
+            throw new IllegalArgumentException("Error: Binary cipher key is truncated");
+        }
+        return encodedSize(alphabet, matrixSize * matrixSize, n);
+    }
+
+    // Same for the alphabet, version 1 keys are all LETTERS
+    static Alphabet peekAlphabet(ByteBuffer in) {
+        peekMatrixSize(in);
+        int position = in.position();
+        if (in.get(position + 2) == VERSION) {
+            return Alphabet.LETTERS;
+        }
+        Alphabet[] alphabets = Alphabet.values();
+        if (in.remaining() < HEADER_LENGTH + 1 || (in.get(position + HEADER_LENGTH) & 0xFF) >= alphabets.length) {
+            throw new IllegalArgumentException("Error: Binary cipher key has an unknown alphabet");
+        }
+        return alphabets[in.get(position + HEADER_LENGTH) & 0xFF];
+    }
+
+    // The master key values straight out of the bytes, for callers that want to look
+    // the key up before building it
+    static int[] readMasterKey(ByteBuffer in) {
+        int matrixSize = peekMatrixSize(in);
+        if (matrixSize < 1 || matrixSize > CipherKey.MAX_MATRIX_SIZE) {
+            throw new IllegalArgumentException("Error: Matrix size must be between 1 and " + CipherKey.MAX_MATRIX_SIZE);
+        }
+        Alphabet alphabet = peekAlphabet(in);
+        boolean letters = in.get(in.position() + 2) == VERSION;
+        int modulus = alphabet.size();
+        in.position(in.position() + 4);
+        int n = in.getInt();
+        int matrixLength = matrixSize * matrixSize;
+        // Checked against what's actually left before anything gets allocated, the
+        // transposition alone takes n * bitWidth(n) bits
+        int width = bitWidth(n);
+        if (n < 0 || (width > 0 && n > in.remaining() * 8L / width)
+                || in.remaining() < encodedSize(alphabet, matrixLength, n) - HEADER_LENGTH) {
+            throw new IllegalArgumentException("Error: Binary cipher key is truncated");
+        }
+        if (!letters) {
+            in.get();
+        }
+
+        int transpositionStart = modulus + matrixLength;
+        int[] masterKey = new int[transpositionStart + n];
+        try {
+            BitReader bits = new BitReader(in);
+            int substitutionWidth = bitWidth(modulus);
+            for (int i = 0; i < modulus; i++) {
+                masterKey[i] = letters ? bits.read(substitutionWidth) : bits.read(substitutionWidth) + 1;
+            }
+            bits.skipToByte();
+
+            for (int i = modulus; i < transpositionStart; i++) {
+                masterKey[i] = letters ? in.get() & 0xFF : in.getShort() & 0xFFFF;
+            }
+
+            for (int i = transpositionStart; i < masterKey.length; i++) {
+                int value = bits.read(width);
+                if (value >= n) {
+                    throw new IllegalArgumentException("Error: Transposition key value out of range");
+                }
+                masterKey[i] = value;
+            }
+            bits.skipToByte();
+        } catch (BufferUnderflowException e) {
+            throw new IllegalArgumentException("Error: Binary cipher key is truncated");
+        }
+        return masterKey;
+    }
+
+    // Bits needed for the positions 0 to n - 1
+    private static int bitWidth(long n) {
+        return n <= 1 ? 0 : 64 - Long.numberOfLeadingZeros(n - 1);
+    }
+
+    private static long packedLength(long n) {
+        return (n * bitWidth(n) + 7) / 8;
+    }
+
+    // Packs values most significant bit first, a whole byte at a time
+    private static final class BitWriter {
+        private final ByteBuffer out;
+        private long buffer;
+        private int count;
+
+        BitWriter(ByteBuffer out) {
+            this.out = out;
+        }
+
+        void write(int value, int width) {
+            buffer = (buffer << width) | value;
+            count += width;
+            while (count >= 8) {
+                count -= 8;
+                out.put((byte) (buffer >>> count));
+            }
+        }
+
+        // Pads what's left out to a full byte with zeros
+        void flush() {
+            if (count > 0) {
+                out.put((byte) (buffer << (8 - count)));
+                count = 0;
+            }
+            buffer = 0;
+        }
+    }
+
+    private static final class BitReader {
+        private final ByteBuffer in;
+        private long buffer;
+        private int count;
+
+        BitReader(ByteBuffer in) {
+            this.in = in;
+        }
+
+        int read(int width) {
+            while (count < width) {
+                buffer = (buffer << 8) | (in.get() & 0xFF);
+                count += 8;
+            }
+            count -= width;
+            return (int) ((buffer >>> count) & ((1L << width) - 1));
+        }
+
+        // Drops the padding bits left in the current byte
+        void skipToByte() {
+            count = 0;
+            buffer = 0;
+        }
+    }
+}
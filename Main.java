@@ -1,12 +1,21 @@
-import java.util.Arrays;
+import java.io.IOException;
 import java.util.Scanner;
 
 public class Main {
 
-    public static void main(String[] args) {
+    public static void main(String[] args) throws IOException {
+        // java Main --server <host:port | port | unix:/path> serves requests instead
+        // of running the menu
+        if (args.length == 2 && args[0].equals("--server")) {
+            runServer(args[1]);
+            return;
+        }
         try (Scanner keyboard = new Scanner(System.in)) {
             int inputValue = 0;
             CustomCipher customCipher = new CustomCipher();
+            // Keys that get decoded more than once don't need to be parsed and built again
+            CipherKeyCache keyCache = new CipherKeyCache(1024);
+            CipherMetrics.registerKeyCache(keyCache);
             do {
                 System.out.print("Do you want to:\n(1)Encode\n(2)Decode\n(3)Quit");
                 System.out.print("\nEnter Selection: ");
@@ -26,7 +35,7 @@ public class Main {
                     String cleanedText = plaintext.replaceAll("\\s+", "");
                     CipherKey encodeKey = new CipherKey(cleanedText.length());
                     System.out.println("-----------------------------------------------------------------------------------");
-                    System.out.println("Key Generated: " + Arrays.toString(encodeKey.getMasterKey()) + "\n");
+                    System.out.println("Key Generated: " + KeyCodec.toText(encodeKey) + "\n");
                     customCipher.encode(plaintext, encodeKey);
 
                     // DECODING OPTION SELECTED
@@ -36,12 +45,14 @@ public class Main {
                     String cipherText = keyboard.nextLine();
                     System.out.print("Cyphertext saved\nNow enter the key to decode it: ");
                     String submittedKeyStr = keyboard.nextLine();
-                    int[] submittedKey = Arrays.stream(submittedKeyStr.split(","))
-                            .map(String::trim) // Trim any spacing
-                            .mapToInt(Integer::parseInt) // Converts to integers
-                            .toArray();
-                    // Create a new key instance for decoding with predefined key
-                    CipherKey decodeKey = new CipherKey(submittedKey);
+                    // Get the key instance for decoding with predefined key
+                    CipherKey decodeKey;
+                    try {
+                        decodeKey = keyCache.get(submittedKeyStr);
+                    } catch (IllegalArgumentException e) {
+                        System.out.println(e.getMessage());
+                        continue;
+                    }
                     // Submit it to the customCipher class to decode
                     customCipher.decode(cipherText, decodeKey);
 
@@ -56,4 +67,18 @@ public class Main {
             } while (inputValue != -1);
         }
     }
+
+    private static void runServer(String address) throws IOException {
+        CipherServer server = new CipherServer(CipherProtocol.parseAddress(address));
+        CipherMetrics.registerKeyCache(server.getKeyCache());
+        // Ctrl+C lets the requests in progress finish before the server goes down
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            try {
+                server.close();
+            } catch (IOException e) {
+                System.out.println("Error: " + e.getMessage());
+            }
+        }));
+        System.out.println("Cipher server listening on " + server.getLocalAddress());
+    }
 }
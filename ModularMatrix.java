@@ -0,0 +1,154 @@
+/*
+ * Inverts n x n key matrices modulo the alphabet size
+ *
+ * Gauss-Jordan elimination needs every pivot to have an inverse, which modulo 26
+ * isn't a given even when the matrix itself is invertible (think of a column
+ * holding only 2s and 13s). So the modulus is split into its prime powers, the
+ * matrix is inverted modulo each one (where a pivot that isn't a multiple of the
+ * prime always has an inverse) and the results are put back together with the
+ * Chinese remainder theorem. This only runs once per key so it favours being
+ * obviously right over being fast
+ */
+final class ModularMatrix {
+
+    private ModularMatrix() {
+    }
+
+    /*
+     * Returns the inverse of the row major size x size matrix with every value
+     * normalized to 1..modulus (0 becomes modulus, same as the rest of the cipher),
+     * or null when the matrix has no inverse
+     */
+    static int[] invert(int[] matrix, int size, int modulus) {
+        int[] result = null;
+        int combinedModulus = 1;
+
+        int remaining = modulus;
+        for (int prime = 2; remaining > 1; prime++) {
+            if (remaining % prime != 0) {
+                continue;
+            }
+            int primePower = 1;
+            while (remaining % prime == 0) {
+                remaining /= prime;
+                primePower *= prime;
+            }
+
+            int[] inverse = invertPrimePower(matrix, size, prime, primePower);
+            if (inverse == null) {
+                return null;
+            }
+            result = result == null ? inverse : combine(result, combinedModulus, inverse, primePower);
+            combinedModulus *= primePower;
+        }
+
+        if (result == null) {
+            return null;
+        }
+        for (int i = 0; i < result.length; i++) {
+            if (result[i] == 0) {
+                result[i] = modulus;
+            }
+        }
+        return result;
+    }
+
+    static boolean isInvertible(int[] matrix, int size, int modulus) {
+        return invert(matrix, size, modulus) != null;
+    }
+
+    // Gauss-Jordan on [matrix | identity] modulo prime^k
+    private static int[] invertPrimePower(int[] matrix, int size, int prime, int primePower) {
+        int[] left = new int[size * size];
+        int[] right = new int[size * size];
+        for (int i = 0; i < left.length; i++) {
+            left[i] = Math.floorMod(matrix[i], primePower);
+        }
+        for (int i = 0; i < size; i++) {
+            right[i * size + i] = 1;
+        }
+
+        for (int column = 0; column < size; column++) {
+            // Any entry that isn't a multiple of the prime can be a pivot
+            int pivot = -1;
+            for (int row = column; row < size; row++) {
+                if (left[row * size + column] % prime != 0) {
+                    pivot = row;
+                    break;
+                }
+            }
+            if (pivot == -1) {
+                return null;
+            }
+            swapRows(left, size, pivot, column);
+            swapRows(right, size, pivot, column);
+
+            int scale = modInverse(left[column * size + column], primePower);
+            scaleRow(left, size, column, scale, primePower);
+            scaleRow(right, size, column, scale, primePower);
+
+            for (int row = 0; row < size; row++) {
+                int factor = left[row * size + column];
+                if (row != column && factor != 0) {
+                    subtractRow(left, size, row, column, factor, primePower);
+                    subtractRow(right, size, row, column, factor, primePower);
+                }
+            }
+        }
+        return right;
+    }
+
+    // Finds the values that match a modulo m1 and b modulo m2 (m1 and m2 coprime)
+    private static int[] combine(int[] a, int m1, int[] b, int m2) {
+        int m1Inverse = modInverse(m1 % m2, m2);
+        int[] result = new int[a.length];
+        for (int i = 0; i < a.length; i++) {
+            int step = Math.floorMod((b[i] - a[i]) * m1Inverse, m2);
+            result[i] = a[i] + m1 * step;
+        }
+        return result;
+    }
+
+    private static void swapRows(int[] values, int size, int a, int b) {
+        if (a == b) {
+            return;
+        }
+        for (int i = 0; i < size; i++) {
+            int swap = values[a * size + i];
+            values[a * size + i] = values[b * size + i];
+            values[b * size + i] = swap;
+        }
+    }
+
+    private static void scaleRow(int[] values, int size, int row, int scale, int modulus) {
+        for (int i = 0; i < size; i++) {
+            values[row * size + i] = (values[row * size + i] * scale) % modulus;
+        }
+    }
+
+    // row -= factor * source
+    private static void subtractRow(int[] values, int size, int row, int source, int factor, int modulus) {
+        for (int i = 0; i < size; i++) {
+            values[row * size + i] = Math.floorMod(values[row * size + i] - factor * values[source * size + i],
+                    modulus);
+        }
+    }
+
+    // Extended Euclid, a has to be coprime with the modulus
+    static int modInverse(int a, int modulus) {
+        int oldR = Math.floorMod(a, modulus);
+        int r = modulus;
+        int oldS = 1;
+        int s = 0;
+        while (r != 0) {
+            int quotient = oldR / r;
+            int swap = oldR - quotient * r;
+            oldR = r;
+            r = swap;
+            swap = oldS - quotient * s;
+            oldS = s;
+            s = swap;
+        }
+        return Math.floorMod(oldS, modulus);
+    }
+}
@@ -0,0 +1,138 @@
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/*
+ * Multi-core version of the CustomCipher buffer API for large messages
+ *
+ * Substitution and the matrix product only look at one matrix block at a time,
+ * so the message is split into block aligned chunks and each one runs through
+ * CustomCipher's fused kernel on a ForkJoinPool. The transposition is a
+ * permutation, so when encoding every chunk scatters into its own set of cipher
+ * positions and when decoding every chunk gathers from its own set, and no two
+ * tasks ever touch the same byte. The output is identical to the sequential path.
+ *
+ * Messages shorter than the threshold aren't worth the task overhead and go
+ * straight to the sequential CustomCipher
+ */
+public class ParallelCipher {
+
+    // Below this many characters the sequential path is faster
+    public static final int DEFAULT_THRESHOLD = 1 << 16;
+
+    // Chunks are never split smaller than this so each task has real work to do
+    private static final int MIN_CHUNK = 1 << 13;
+
+    private final CustomCipher sequential = new CustomCipher();
+    private final ForkJoinPool pool;
+    private final int threshold;
+
+    public ParallelCipher() {
+        this(ForkJoinPool.commonPool(), DEFAULT_THRESHOLD);
+    }
+
+    public ParallelCipher(ForkJoinPool pool, int threshold) {
+        this.pool = pool;
+        this.threshold = threshold;
+    }
+
+    /*
+     * Same contract as CustomCipher.encode(byte[] ...), the work buffer has to hold
+     * at least CustomCipher.encodedLength(length, key) values (it only gets used
+     * when the key sends the message down the sequential path)
+     */
+    public int encode(byte[] plaintext, int offset, int length, CipherKey encodeKey,
+            byte[] out, int outOffset, int[] work) {
+        long startTime = CipherMetrics.start();
+        CompiledKey compiledKey = encodeKey.getCompiledKey();
+        // Scattering in parallel needs a real permutation, a predefined key without
+        // one has to go through the sequential gather
+        if (length < threshold || compiledKey.inverseTransposition == null) {
+            return sequential.encode(plaintext, offset, length, encodeKey, out, outOffset, work);
+        }
+        int n = CustomCipher.checkEncodeLength(length, compiledKey);
+        int matrixSize = compiledKey.matrixSize;
+        run(n, matrixSize, (from, to) -> CustomCipher.encodeBlocks(plaintext, offset, length, compiledKey, 0,
+                from, to, out, outOffset, new int[matrixSize]));
+        CipherMetrics.record(CipherMetrics.Operation.ENCODE, n, startTime);
+        return n;
+    }
+
+    public int encode(byte[] plaintext, int offset, int length, CipherKey encodeKey, byte[] out, int outOffset) {
+        if (length < threshold || encodeKey.getCompiledKey().inverseTransposition == null) {
+            return sequential.encode(plaintext, offset, length, encodeKey, out, outOffset);
+        }
+        return encode(plaintext, offset, length, encodeKey, out, outOffset, null);
+    }
+
+    /*
+     * Same contract as CustomCipher.decode(byte[] ...), the work buffer has to hold
+     * at least length values (again only for the sequential path)
+     */
+    public int decode(byte[] cipherText, int offset, int length, CipherKey decodedKey,
+            byte[] out, int outOffset, int[] work) {
+        long startTime = CipherMetrics.start();
+        CompiledKey compiledKey = decodedKey.getCompiledKey();
+        // Undoing the transposition in parallel needs a real permutation to gather
+        // with, a predefined key without one has to go through the sequential scatter
+        if (length < threshold || compiledKey.inverseTransposition == null) {
+            return sequential.decode(cipherText, offset, length, decodedKey, out, outOffset, work);
+        }
+        CustomCipher.checkDecodeLength(length, compiledKey);
+        CustomCipher.checkInvertible(compiledKey);
+
+        int matrixSize = compiledKey.matrixSize;
+        run(length, matrixSize, (from, to) -> CustomCipher.decodeBlocks(cipherText, offset, compiledKey, from, to,
+                out, outOffset, length, new int[matrixSize]));
+        CipherMetrics.record(CipherMetrics.Operation.DECODE, length, startTime);
+        return length;
+    }
+
+    public int decode(byte[] cipherText, int offset, int length, CipherKey decodedKey, byte[] out, int outOffset) {
+        if (length < threshold || decodedKey.getCompiledKey().inverseTransposition == null) {
+            return sequential.decode(cipherText, offset, length, decodedKey, out, outOffset);
+        }
+        return decode(cipherText, offset, length, decodedKey, out, outOffset, null);
+    }
+
+    // Splits [0, length) into chunks sized for the pool that start and end on a
+    // multiple of alignment, and waits for all of them
+    private void run(int length, int alignment, RangeBody body) {
+        int chunk = Math.max(MIN_CHUNK, length / (pool.getParallelism() * 4));
+        chunk = (chunk + alignment - 1) / alignment * alignment;
+        pool.invoke(new RangeTask(body, 0, length, chunk, alignment));
+    }
+
+    private interface RangeBody {
+        void run(int from, int to);
+    }
+
+    private static final class RangeTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final transient RangeBody body;
+        private final int from;
+        private final int to;
+        private final int chunk;
+        private final int alignment;
+
+        RangeTask(RangeBody body, int from, int to, int chunk, int alignment) {
+            this.body = body;
+            this.from = from;
+            this.to = to;
+            this.chunk = chunk;
+            this.alignment = alignment;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= chunk) {
+                body.run(from, to);
+                return;
+            }
+            // Split in the middle on a block boundary so no block gets cut in half
+            int middle = from + (to - from) / 2 / alignment * alignment;
+            invokeAll(new RangeTask(body, from, middle, chunk, alignment),
+                    new RangeTask(body, middle, to, chunk, alignment));
+        }
+    }
+}
@@ -0,0 +1,128 @@
+import java.util.Random;
+import java.util.SplittableRandom;
+import java.util.concurrent.ThreadLocalRandom;
+
+import bench.CipherHarness;
+
+/*
+ * The default package side of bench.CipherHarness, this is where the benchmarks
+ * actually call into the cipher
+ *
+ * Each stage reads its own array, so no stage's input is something another stage
+ * has been rewriting in place and every call does the same amount of work
+ */
+public class BenchmarkHarness implements CipherHarness {
+
+    private final CustomCipher cipher = new CustomCipher();
+    private int messageSize;
+    private CipherKey key;
+    private CompiledKey compiledKey;
+    private int[] masterKey;
+
+    private byte[] plaintext;
+    private byte[] cipherText;
+    private byte[] decoded;
+    private int[] work;
+
+    private int[] substituteValues;
+    private int[] productValues;
+    private int[] transposeValues;
+    private int[] transposedValues;
+    private int[] cipherValues;
+    private int[] decodeProductValues;
+    private int[] decodeSubstituteValues;
+
+    @Override
+    public void setUp(int messageSize, int matrixSize) {
+        Random random = new Random(42);
+        this.messageSize = messageSize;
+        key = new CipherKey(messageSize, matrixSize, new SplittableRandom(42));
+        compiledKey = key.getCompiledKey();
+        masterKey = key.getMasterKey();
+
+        plaintext = new byte[messageSize];
+        for (int i = 0; i < messageSize; i++) {
+            plaintext[i] = (byte) ('A' + random.nextInt(26));
+        }
+        int n = CustomCipher.encodedLength(messageSize, key);
+        cipherText = new byte[n];
+        decoded = new byte[n];
+        work = new int[n];
+        cipher.encode(plaintext, 0, messageSize, key, cipherText, 0, work);
+
+        substituteValues = new int[n];
+        for (int i = 0; i < n; i++) {
+            substituteValues[i] = plaintext[Math.min(i, messageSize - 1)] - 'A' + 1;
+        }
+        productValues = substituteValues.clone();
+        transposeValues = substituteValues.clone();
+        transposedValues = new int[n];
+        cipherValues = new int[n];
+        for (int i = 0; i < n; i++) {
+            cipherValues[i] = cipherText[i] - 'A' + 1;
+        }
+        decodeProductValues = cipherValues.clone();
+        decodeSubstituteValues = cipherValues.clone();
+    }
+
+    @Override
+    public int encode() {
+        return cipher.encode(plaintext, 0, messageSize, key, cipherText, 0, work);
+    }
+
+    @Override
+    public int decode() {
+        return cipher.decode(cipherText, 0, cipherText.length, key, decoded, 0, work);
+    }
+
+    @Override
+    public Object substitute() {
+        CustomCipher.substitute(substituteValues, 0, substituteValues.length, compiledKey.substitutionTable);
+        return substituteValues;
+    }
+
+    @Override
+    public Object makeProduct() {
+        CustomCipher.makeProduct(productValues, 0, productValues.length, compiledKey.matrix,
+                compiledKey.matrixSize, compiledKey.modulus);
+        return productValues;
+    }
+
+    @Override
+    public Object transpose() {
+        CustomCipher.transpose(transposeValues, compiledKey.transposition, 0, transposeValues.length,
+                transposedValues, 0);
+        return transposedValues;
+    }
+
+    @Override
+    public Object decodeTransposition() {
+        CustomCipher.decodeTransposition(cipherValues, 0, compiledKey.transposition, 0, cipherValues.length,
+                transposedValues);
+        return transposedValues;
+    }
+
+    @Override
+    public Object decodeProduct() {
+        CustomCipher.decodeProduct(decodeProductValues, 0, decodeProductValues.length, compiledKey.inverseMatrix,
+                compiledKey.matrixSize, compiledKey.modulus);
+        return decodeProductValues;
+    }
+
+    @Override
+    public Object decodeSubstitute() {
+        CustomCipher.decodeSubstitute(decodeSubstituteValues, 0, decodeSubstituteValues.length,
+                compiledKey.inverseSubstitutionTable);
+        return decodeSubstituteValues;
+    }
+
+    @Override
+    public Object generateKey() {
+        return new CipherKey(messageSize, compiledKey.matrixSize, ThreadLocalRandom.current());
+    }
+
+    @Override
+    public Object predefinedKey() {
+        return new CipherKey(masterKey, compiledKey.matrixSize);
+    }
+}
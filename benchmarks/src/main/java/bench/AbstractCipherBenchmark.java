@@ -0,0 +1,78 @@
+package bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/*
+ * End to end encode/decode plus every cipher stage on its own, the message sizes
+ * come from CipherBenchmark and LargeCipherBenchmark so only the 100 MB runs
+ * need a big heap
+ *
+ * Run with "-prof gc" to get the allocation rate next to ops/s
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public abstract class AbstractCipherBenchmark {
+
+    private CipherHarness harness;
+
+    protected abstract int messageSize();
+
+    @Setup
+    public void setUp() {
+        harness = CipherHarness.create();
+        harness.setUp(messageSize());
+    }
+
+    @Benchmark
+    public int encode() {
+        return harness.encode();
+    }
+
+    @Benchmark
+    public int decode() {
+        return harness.decode();
+    }
+
+    @Benchmark
+    public Object substitute() {
+        return harness.substitute();
+    }
+
+    @Benchmark
+    public Object makeProduct() {
+        return harness.makeProduct();
+    }
+
+    @Benchmark
+    public Object transpose() {
+        return harness.transpose();
+    }
+
+    @Benchmark
+    public Object decodeTransposition() {
+        return harness.decodeTransposition();
+    }
+
+    @Benchmark
+    public Object decodeProduct() {
+        return harness.decodeProduct();
+    }
+
+    @Benchmark
+    public Object decodeSubstitute() {
+        return harness.decodeSubstitute();
+    }
+}
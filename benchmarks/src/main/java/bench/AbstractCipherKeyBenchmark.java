@@ -0,0 +1,46 @@
+package bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/*
+ * Both CipherKey constructors: generating a random key for a message size and
+ * parsing a predefined master key. The sizes come from CipherKeyBenchmark and
+ * LargeCipherKeyBenchmark like the cipher benchmarks
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public abstract class AbstractCipherKeyBenchmark {
+
+    private CipherHarness harness;
+
+    protected abstract int messageSize();
+
+    @Setup
+    public void setUp() {
+        harness = CipherHarness.create();
+        harness.setUp(messageSize());
+    }
+
+    @Benchmark
+    public Object generateKey() {
+        return harness.generateKey();
+    }
+
+    @Benchmark
+    public Object predefinedKey() {
+        return harness.predefinedKey();
+    }
+}
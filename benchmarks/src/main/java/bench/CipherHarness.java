@@ -0,0 +1,47 @@
+package bench;
+
+/*
+ * JMH won't generate benchmarks for classes in the default package, and classes in
+ * a named package can't see the cipher classes that live there. So the benchmarks
+ * only talk to this interface and the real work sits in BenchmarkHarness (default
+ * package), which gets loaded by name. The calls are monomorphic so the JIT
+ * inlines straight through them
+ */
+public interface CipherHarness {
+
+    static CipherHarness create() {
+        try {
+            return (CipherHarness) Class.forName("BenchmarkHarness").getDeclaredConstructor().newInstance();
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("Error: BenchmarkHarness is missing from the classpath", e);
+        }
+    }
+
+    // Builds a key, a random plaintext of the given size and its cipher
+    default void setUp(int messageSize) {
+        setUp(messageSize, 2);
+    }
+
+    // Same with a key built around an n x n matrix
+    void setUp(int messageSize, int matrixSize);
+
+    int encode();
+
+    int decode();
+
+    Object substitute();
+
+    Object makeProduct();
+
+    Object transpose();
+
+    Object decodeTransposition();
+
+    Object decodeProduct();
+
+    Object decodeSubstitute();
+
+    Object generateKey();
+
+    Object predefinedKey();
+}
@@ -0,0 +1,17 @@
+package bench;
+
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Param;
+
+// Message sizes up to 1 MB, these run fine on the default heap
+@Fork(value = 1)
+public class CipherKeyBenchmark extends AbstractCipherKeyBenchmark {
+
+    @Param({ "16", "1024", "65536", "1048576" })
+    public int messageSize;
+
+    @Override
+    protected int messageSize() {
+        return messageSize;
+    }
+}
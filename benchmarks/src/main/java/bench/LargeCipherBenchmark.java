@@ -0,0 +1,18 @@
+package bench;
+
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Param;
+
+// The 100 MB message, which needs around 6 GB of heap for all the stage arrays
+// so it gets its own class and only these forks ask for 8 GB
+@Fork(value = 1, jvmArgsAppend = { "-Xms8g", "-Xmx8g" })
+public class LargeCipherBenchmark extends AbstractCipherBenchmark {
+
+    @Param({ "104857600" })
+    public int messageSize;
+
+    @Override
+    protected int messageSize() {
+        return messageSize;
+    }
+}
@@ -0,0 +1,17 @@
+package bench;
+
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Param;
+
+// Keys for the 100 MB message, same reason as LargeCipherBenchmark for the big heap
+@Fork(value = 1, jvmArgsAppend = { "-Xms8g", "-Xmx8g" })
+public class LargeCipherKeyBenchmark extends AbstractCipherKeyBenchmark {
+
+    @Param({ "104857600" })
+    public int messageSize;
+
+    @Override
+    protected int messageSize() {
+        return messageSize;
+    }
+}
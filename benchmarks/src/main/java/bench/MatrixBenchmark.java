@@ -0,0 +1,67 @@
+package bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/*
+ * Cost per byte of the matrix stage (and the whole cipher) for each matrix size,
+ * 2 being the original 2x2 path. Every invocation handles MESSAGE_SIZE bytes so
+ * the scores come out in nanoseconds per byte
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1)
+public class MatrixBenchmark {
+
+    static final int MESSAGE_SIZE = 1 << 20;
+
+    @Param({ "2", "4", "8", "16" })
+    public int matrixSize;
+
+    private CipherHarness harness;
+
+    @Setup
+    public void setUp() {
+        harness = CipherHarness.create();
+        harness.setUp(MESSAGE_SIZE, matrixSize);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(MESSAGE_SIZE)
+    public Object makeProduct() {
+        return harness.makeProduct();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(MESSAGE_SIZE)
+    public Object decodeProduct() {
+        return harness.decodeProduct();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(MESSAGE_SIZE)
+    public int encode() {
+        return harness.encode();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(MESSAGE_SIZE)
+    public int decode() {
+        return harness.decode();
+    }
+}
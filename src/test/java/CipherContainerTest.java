@@ -0,0 +1,58 @@
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.SplittableRandom;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class CipherContainerTest {
+
+    @TempDir
+    Path directory;
+
+    private final CipherKey key = new CipherKey(64, 2, Alphabet.BYTES, new SplittableRandom(9));
+
+    @Test
+    void rangesAndWholeDecodeMatchThePlaintext() throws IOException {
+        byte[] plaintext = new byte[10_000];
+        new SplittableRandom(10).nextBytes(plaintext);
+        Path container = create(plaintext);
+
+        try (CipherContainer opened = CipherContainer.open(container, key)) {
+            assertEquals(plaintext.length, opened.size());
+            for (int[] range : new int[][] {{0, 1}, {0, 64}, {63, 2}, {100, 1000}, {9_990, 10}, {5_000, 5_000}}) {
+                byte[] out = new byte[range[1]];
+                assertEquals(range[1], opened.read(range[0], out, 0, range[1]));
+                assertArrayEquals(Arrays.copyOfRange(plaintext, range[0], range[0] + range[1]), out);
+            }
+            Path decoded = directory.resolve("decoded");
+            opened.decode(decoded);
+            assertArrayEquals(plaintext, Files.readAllBytes(decoded));
+        }
+    }
+
+    @Test
+    void wrongKeyIsRejected() throws IOException {
+        byte[] plaintext = new byte[1000];
+        new SplittableRandom(11).nextBytes(plaintext);
+        Path container = create(plaintext);
+
+        // Same block and matrix size, only the key check tells them apart
+        CipherKey other = new CipherKey(64, 2, Alphabet.BYTES, new SplittableRandom(12));
+        assertThrows(IllegalArgumentException.class, () -> CipherContainer.open(container, other));
+    }
+
+    private Path create(byte[] plaintext) throws IOException {
+        Path input = directory.resolve("plain");
+        Path container = directory.resolve("container");
+        Files.write(input, plaintext);
+        CipherContainer.create(input, container, key);
+        return container;
+    }
+}
@@ -0,0 +1,37 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.SplittableRandom;
+
+import org.junit.jupiter.api.Test;
+
+class CipherKeyCacheTest {
+
+    @Test
+    void sizeNeverGoesOverTheMaximum() {
+        SplittableRandom random = new SplittableRandom(1);
+        for (int maximumSize : new int[] {1, 2, 3, 15, 16, 17, 33, 100}) {
+            CipherKeyCache cache = new CipherKeyCache(maximumSize);
+            for (int i = 0; i < maximumSize * 20 + 50; i++) {
+                cache.get(new CipherKey(8, random).getMasterKey());
+                assertTrue(cache.size() <= maximumSize,
+                        "size " + cache.size() + " over maximum " + maximumSize);
+            }
+            assertEquals(maximumSize * 20 + 50 - cache.size(), cache.getEvictionCount());
+        }
+    }
+
+    @Test
+    void cacheOfOneKeepsTheLastKey() {
+        SplittableRandom random = new SplittableRandom(2);
+        CipherKeyCache cache = new CipherKeyCache(1);
+        int[] first = new CipherKey(8, random).getMasterKey();
+        int[] second = new CipherKey(8, random).getMasterKey();
+        cache.get(first);
+        CipherKey cached = cache.get(second);
+        assertEquals(1, cache.size());
+        assertSame(cached, cache.get(second));
+        assertEquals(1, cache.getHitCount());
+    }
+}
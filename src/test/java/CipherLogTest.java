@@ -0,0 +1,106 @@
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.SplittableRandom;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class CipherLogTest {
+
+    @TempDir
+    Path directory;
+
+    private final CipherKey key = new CipherKey(64, 2, Alphabet.BYTES, new SplittableRandom(7));
+
+    @Test
+    void segmentsSurviveReopening() throws IOException {
+        Path file = directory.resolve("log");
+        byte[][] records = records(20);
+        try (CipherLog log = CipherLog.open(file, key)) {
+            for (byte[] record : records) {
+                log.append(record);
+            }
+        }
+        try (CipherLog log = CipherLog.open(file, key)) {
+            assertSegments(log, records);
+        }
+    }
+
+    @Test
+    void cipherWithoutAnIndexEntryIsDropped() throws IOException {
+        Path file = directory.resolve("log");
+        byte[][] records = records(5);
+        try (CipherLog log = CipherLog.open(file, key)) {
+            for (byte[] record : records) {
+                log.append(record);
+            }
+        }
+        // A crash between writing a segment's cipher and its index entry
+        long logSize = Files.size(file);
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+            channel.write(ByteBuffer.wrap(new byte[64]), logSize);
+        }
+        try (CipherLog log = CipherLog.open(file, key)) {
+            assertEquals(logSize, Files.size(file));
+            assertSegments(log, records);
+            log.append(records[0]);
+            assertArrayEquals(records[0], log.readSegment(records.length));
+        }
+    }
+
+    @Test
+    void indexEntryWithoutItsCipherIsDropped() throws IOException {
+        Path file = directory.resolve("log");
+        byte[][] records = records(5);
+        try (CipherLog log = CipherLog.open(file, key)) {
+            for (byte[] record : records) {
+                log.append(record);
+            }
+        }
+        // The index made it to the disk but the end of the last segment didn't
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+            channel.truncate(channel.size() - 1);
+        }
+        try (CipherLog log = CipherLog.open(file, key)) {
+            byte[][] kept = new byte[records.length - 1][];
+            System.arraycopy(records, 0, kept, 0, kept.length);
+            assertSegments(log, kept);
+        }
+    }
+
+    @Test
+    void wrongKeyIsRejected() throws IOException {
+        Path file = directory.resolve("log");
+        try (CipherLog log = CipherLog.open(file, key)) {
+            log.append(records(1)[0]);
+        }
+        CipherKey other = new CipherKey(64, 2, Alphabet.BYTES, new SplittableRandom(8));
+        assertThrows(IOException.class, () -> CipherLog.open(file, other));
+    }
+
+    private static void assertSegments(CipherLog log, byte[][] records) throws IOException {
+        assertEquals(records.length, log.getSegmentCount());
+        for (int i = 0; i < records.length; i++) {
+            assertArrayEquals(records[i], log.readSegment(i), "segment " + i);
+        }
+    }
+
+    // Lengths all over the place, each one fits in a single segment
+    private static byte[][] records(int count) {
+        SplittableRandom random = new SplittableRandom(count);
+        byte[][] records = new byte[count][];
+        for (int i = 0; i < count; i++) {
+            records[i] = new byte[1 + random.nextInt(60)];
+            random.nextBytes(records[i]);
+        }
+        return records;
+    }
+}
@@ -0,0 +1,87 @@
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+
+import java.io.ByteArrayOutputStream;
+import java.util.SplittableRandom;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Flow;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.SubmissionPublisher;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Test;
+
+class CipherProcessorTest {
+
+    @Test
+    void roundTripWithBatchOfOneBlock() throws Exception {
+        CipherKey key = new CipherKey(64, 2, Alphabet.BYTES, new SplittableRandom(5));
+        for (int prefetch : new int[] {1, 16}) {
+            for (int length : new int[] {0, 1, 63, 64, 65, 128, 1000, 4096}) {
+                for (int chunkSize : new int[] {1, 7, 64, 500}) {
+                    roundTrip(key, 64, prefetch, length, chunkSize);
+                }
+            }
+        }
+    }
+
+    @Test
+    void roundTripWithBlocksBiggerThanTheDefaultBatch() throws Exception {
+        CipherKey key = new CipherKey(40000, 2, Alphabet.BYTES, new SplittableRandom(6));
+        roundTrip(key, CipherProcessor.DEFAULT_BATCH_SIZE, CipherProcessor.DEFAULT_PREFETCH, 2_000_001, 8192);
+    }
+
+    private static void roundTrip(CipherKey key, int batchSize, int prefetch, int length, int chunkSize)
+            throws Exception {
+        byte[] plaintext = new byte[length];
+        new SplittableRandom(length).nextBytes(plaintext);
+
+        CipherProcessor encoder = new CipherProcessor(key, CipherProcessor.Mode.ENCODE, ForkJoinPool.commonPool(),
+                batchSize, prefetch);
+        CipherProcessor decoder = new CipherProcessor(key, CipherProcessor.Mode.DECODE, ForkJoinPool.commonPool(),
+                batchSize, prefetch);
+        Collector collector = new Collector();
+        encoder.subscribe(decoder);
+        decoder.subscribe(collector);
+        try (SubmissionPublisher<byte[]> publisher = new SubmissionPublisher<>()) {
+            publisher.subscribe(encoder);
+            for (int i = 0; i < length; i += chunkSize) {
+                byte[] chunk = new byte[Math.min(chunkSize, length - i)];
+                System.arraycopy(plaintext, i, chunk, 0, chunk.length);
+                publisher.submit(chunk);
+            }
+        }
+        // A stalled pipeline never completes, so this is what catches a hang
+        assertArrayEquals(plaintext, collector.result.get(10, TimeUnit.SECONDS),
+                "batch " + batchSize + " prefetch " + prefetch
+                        + " length " + length + " chunks " + chunkSize);
+    }
+
+    // Asks for one chunk at a time, the slowest a subscriber can go
+    private static final class Collector implements Flow.Subscriber<byte[]> {
+        final CompletableFuture<byte[]> result = new CompletableFuture<>();
+        private final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        private Flow.Subscription subscription;
+
+        @Override
+        public void onSubscribe(Flow.Subscription subscription) {
+            this.subscription = subscription;
+            subscription.request(1);
+        }
+
+        @Override
+        public void onNext(byte[] item) {
+            out.write(item, 0, item.length);
+            subscription.request(1);
+        }
+
+        @Override
+        public void onError(Throwable throwable) {
+            result.completeExceptionally(throwable);
+        }
+
+        @Override
+        public void onComplete() {
+            result.complete(out.toByteArray());
+        }
+    }
+}
@@ -0,0 +1,88 @@
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.SplittableRandom;
+
+import org.junit.jupiter.api.Test;
+
+class CustomCipherStreamTest {
+
+    @Test
+    void roundTripWithoutTheMarkerInTheAlphabet() throws IOException {
+        SplittableRandom random = new SplittableRandom(14);
+        CipherKey key = new CipherKey(8, 2, Alphabet.LETTERS, random);
+        for (int length = 0; length < 100; length++) {
+            byte[] plaintext = new byte[length];
+            for (int i = 0; i < length; i++) {
+                plaintext[i] = (byte) ('A' + random.nextInt(26));
+            }
+            assertArrayEquals(plaintext, decode(encode(plaintext, key), key, false), "length " + length);
+        }
+    }
+
+    /*
+     * With '=' in the alphabet a cipher block can start with the trailer marker, and
+     * only what follows it tells the two apart. Plenty of short blocks make sure that
+     * case actually comes up, and reading a byte at a time makes the look ahead come
+     * back short
+     */
+    @Test
+    void roundTripWithTheMarkerInTheAlphabet() throws IOException {
+        SplittableRandom random = new SplittableRandom(15);
+        for (Alphabet alphabet : new Alphabet[] {Alphabet.PRINTABLE_ASCII, Alphabet.BYTES}) {
+            CipherKey key = new CipherKey(8, 2, alphabet, random);
+            int blocksStartingWithMarker = 0;
+            for (int message = 0; message < 2000; message++) {
+                byte[] plaintext = new byte[random.nextInt(200)];
+                for (int i = 0; i < plaintext.length; i++) {
+                    plaintext[i] = random.nextInt(4) == 0 ? (byte) '='
+                            : (byte) key.getCompiledKey().symbolTable[1 + random.nextInt(alphabet.size())];
+                }
+                byte[] cipherText = encode(plaintext, key);
+                for (int i = 8; i < cipherText.length - 5; i += 8) {
+                    if (cipherText[i] == '=') {
+                        blocksStartingWithMarker++;
+                    }
+                }
+                String context = alphabet + " length " + plaintext.length;
+                assertArrayEquals(plaintext, decode(cipherText, key, false), context);
+                assertArrayEquals(plaintext, decode(cipherText, key, true), context);
+            }
+            assertTrue(blocksStartingWithMarker > 0, alphabet + " never put '=' at the start of a block");
+        }
+    }
+
+    private static byte[] encode(byte[] plaintext, CipherKey key) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (CustomCipherOutputStream out = new CustomCipherOutputStream(bytes, key)) {
+            out.write(plaintext);
+        }
+        return bytes.toByteArray();
+    }
+
+    private static byte[] decode(byte[] cipherText, CipherKey key, boolean byteAtATime) throws IOException {
+        InputStream source = new ByteArrayInputStream(cipherText);
+        if (byteAtATime) {
+            source = new InputStream() {
+                private final ByteArrayInputStream wrapped = new ByteArrayInputStream(cipherText);
+
+                @Override
+                public int read() {
+                    return wrapped.read();
+                }
+
+                @Override
+                public int read(byte[] b, int off, int len) {
+                    return len == 0 ? 0 : wrapped.read(b, off, 1);
+                }
+            };
+        }
+        try (CustomCipherInputStream in = new CustomCipherInputStream(source, key)) {
+            return in.readAllBytes();
+        }
+    }
+}
@@ -0,0 +1,146 @@
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.SplittableRandom;
+import java.util.concurrent.ForkJoinPool;
+
+import org.junit.jupiter.api.Test;
+
+/*
+ * The fused kernels (and the in place, ByteBuffer and parallel paths built on
+ * them) have to give exactly what the staged pipeline gives. The int[] overloads
+ * always run substitution, matrix and transposition as separate passes, so they
+ * are the reference here
+ */
+class CustomCipherTest {
+
+    private final CustomCipher cipher = new CustomCipher();
+
+    @Test
+    void fusedMatchesStaged() {
+        SplittableRandom random = new SplittableRandom(12);
+        for (Alphabet alphabet : Alphabet.values()) {
+            for (int matrixSize = 1; matrixSize <= 4; matrixSize++) {
+                for (int message = 0; message < 100; message++) {
+                    int length = 1 + random.nextInt(message < 50 ? 20 : 2000);
+                    CipherKey key = new CipherKey(length, matrixSize, alphabet, random);
+                    assertSamePaths(key, plaintext(key, length, random),
+                            alphabet + " " + matrixSize + "x" + matrixSize + " length " + length);
+                }
+            }
+        }
+    }
+
+    @Test
+    void parallelMatchesStaged() {
+        SplittableRandom random = new SplittableRandom(13);
+        ParallelCipher parallel = new ParallelCipher(ForkJoinPool.commonPool(), 1 << 12);
+        for (int length : new int[] {100_000, 1_000_003}) {
+            CipherKey key = new CipherKey(length, 2, Alphabet.BYTES, random);
+            byte[] plaintext = plaintext(key, length, random);
+            byte[] expected = stagedEncode(key, plaintext);
+
+            byte[] cipherText = new byte[expected.length];
+            assertEquals(expected.length, parallel.encode(plaintext, 0, length, key, cipherText, 0));
+            assertArrayEquals(expected, cipherText);
+
+            byte[] decoded = new byte[expected.length];
+            parallel.decode(cipherText, 0, cipherText.length, key, decoded, 0);
+            assertArrayEquals(stagedDecode(key, expected), decoded);
+        }
+    }
+
+    private void assertSamePaths(CipherKey key, byte[] plaintext, String message) {
+        int length = plaintext.length;
+        byte[] expected = stagedEncode(key, plaintext);
+        int n = expected.length;
+
+        byte[] cipherText = new byte[n];
+        assertEquals(n, cipher.encode(plaintext, 0, length, key, cipherText, 0), message);
+        assertArrayEquals(expected, cipherText, message);
+
+        char[] chars = new char[n];
+        cipher.encode(toChars(plaintext), 0, length, key, chars, 0);
+        assertArrayEquals(toChars(expected), chars, message);
+
+        ByteBuffer direct = ByteBuffer.allocateDirect(n);
+        cipher.encode(ByteBuffer.wrap(plaintext), key, direct);
+        assertArrayEquals(expected, bytes(direct.flip()), message);
+
+        byte[] inPlace = Arrays.copyOf(plaintext, n);
+        cipher.encodeInPlace(inPlace, 0, length, key);
+        assertArrayEquals(expected, inPlace, message);
+
+        // Decoding gives back the padded plaintext, the same way on every path
+        byte[] padded = stagedDecode(key, expected);
+        assertArrayEquals(plaintext, Arrays.copyOf(padded, length), message);
+
+        byte[] decoded = new byte[n];
+        cipher.decode(expected, 0, n, key, decoded, 0);
+        assertArrayEquals(padded, decoded, message);
+
+        ByteBuffer directOut = ByteBuffer.allocateDirect(n);
+        cipher.decode(ByteBuffer.allocateDirect(n).put(expected).flip(), key, directOut);
+        assertArrayEquals(padded, bytes(directOut.flip()), message);
+
+        cipher.decodeInPlace(inPlace, 0, n, key);
+        assertArrayEquals(padded, inPlace, message);
+    }
+
+    private byte[] stagedEncode(CipherKey key, byte[] plaintext) {
+        CompiledKey compiledKey = key.getCompiledKey();
+        int n = CustomCipher.encodedLength(plaintext.length, key);
+        int[] values = new int[plaintext.length];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = compiledKey.valueTable[plaintext[i] & 0xFF];
+        }
+        int[] out = new int[n];
+        cipher.encode(values, 0, values.length, key, out, 0, new int[n]);
+        return symbols(compiledKey, out);
+    }
+
+    private byte[] stagedDecode(CipherKey key, byte[] cipherText) {
+        CompiledKey compiledKey = key.getCompiledKey();
+        int[] values = new int[cipherText.length];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = compiledKey.valueTable[cipherText[i] & 0xFF];
+        }
+        int[] out = new int[values.length];
+        cipher.decode(values, 0, values.length, key, out, 0, new int[values.length]);
+        return symbols(compiledKey, out);
+    }
+
+    private static byte[] symbols(CompiledKey compiledKey, int[] values) {
+        byte[] bytes = new byte[values.length];
+        for (int i = 0; i < values.length; i++) {
+            bytes[i] = (byte) compiledKey.symbolTable[values[i]];
+        }
+        return bytes;
+    }
+
+    // Random symbols of the key's alphabet
+    private static byte[] plaintext(CipherKey key, int length, SplittableRandom random) {
+        CompiledKey compiledKey = key.getCompiledKey();
+        byte[] plaintext = new byte[length];
+        for (int i = 0; i < length; i++) {
+            plaintext[i] = (byte) compiledKey.symbolTable[1 + random.nextInt(compiledKey.modulus)];
+        }
+        return plaintext;
+    }
+
+    private static char[] toChars(byte[] bytes) {
+        char[] chars = new char[bytes.length];
+        for (int i = 0; i < bytes.length; i++) {
+            chars[i] = (char) (bytes[i] & 0xFF);
+        }
+        return chars;
+    }
+
+    private static byte[] bytes(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.get(bytes);
+        return bytes;
+    }
+}
@@ -0,0 +1,29 @@
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.SplittableRandom;
+
+import org.junit.jupiter.api.Test;
+
+class KeyCodecTest {
+
+    @Test
+    void roundTrip() {
+        CipherKey key = new CipherKey(40, new SplittableRandom(3));
+        assertArrayEquals(key.getMasterKey(), KeyCodec.fromBytes(KeyCodec.toBytes(key)).getMasterKey());
+    }
+
+    @Test
+    void forgedTranspositionLengthIsRejected() {
+        byte[] bytes = KeyCodec.toBytes(new CipherKey(8, new SplittableRandom(4)));
+        for (int n : new int[] {600_000_000, Integer.MAX_VALUE, Integer.MIN_VALUE, -1, 1 << 20}) {
+            // A real key's header and body, only the transposition length is forged
+            byte[] forged = Arrays.copyOf(bytes, 64);
+            ByteBuffer.wrap(forged).putInt(4, n);
+            assertThrows(IllegalArgumentException.class, () -> KeyCodec.fromBytes(forged));
+            assertThrows(IllegalArgumentException.class, () -> KeyCodec.readMasterKey(ByteBuffer.wrap(forged)));
+        }
+    }
+}